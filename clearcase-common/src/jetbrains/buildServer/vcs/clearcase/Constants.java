@@ -69,6 +69,44 @@ public interface Constants {
   @NonNls
   public static final String TEAMCITY_PROPERTY_LSHISTORY_UCM_DELAY = "clearcase.lshistory.ucm.delay.seconds"; //$NON-NLS-1$
   @NonNls
+  public static final String TEAMCITY_PROPERTY_LSHISTORY_LIGHTWEIGHT = "clearcase.lshistory.lightweight"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_LSHISTORY_DETAILS_BATCH_SIZE = "clearcase.lshistory.details.batch.size"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_LSHISTORY_SCOPE_TO_LOAD_RULES = "clearcase.lshistory.scope.to.load.rules"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_VIEW_UPDATE_ALWAYS = "clearcase.view.update.always"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_DIRECTORY_LISTING_CACHE_SIZE = "clearcase.directory.listing.cache.size"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_DIRECTORY_LISTING_CACHE_PERSISTENT = "clearcase.directory.listing.cache.persistent"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_FILE_ATTRIBUTE_CACHE_SIZE = "clearcase.file.attribute.cache.size"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_FILE_ATTRIBUTE_CHECK_INTERVAL = "clearcase.file.attribute.check.interval.seconds"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_CONTENT_STORE_MAX_SIZE_MB = "clearcase.content.store.max.size.mb"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_IDLE_PROCESSES_PER_VIEW = "clearcase.idle.processes.per.view"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_IDLE_PROCESS_TIMEOUT = "clearcase.idle.process.timeout.seconds"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_DESCRIBE_BATCH_SIZE = "clearcase.describe.batch.size"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_MKLABEL_BATCH_SIZE = "clearcase.mklabel.batch.size"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_LABELING_PARALLELISM = "clearcase.labeling.parallelism"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_STRUCTURE_CACHE_MAX_SIZE_MB = "clearcase.structure.cache.max.size.mb"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_STRUCTURE_CACHE_KEEP_SNAPSHOTS = "clearcase.structure.cache.keep.snapshots"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_STRUCTURE_CACHE_MAX_DELTA_CHAIN = "clearcase.structure.cache.max.delta.chain"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_STRUCTURE_CACHE_LABEL_BASED = "clearcase.structure.cache.label.based"; //$NON-NLS-1$
+  @NonNls
+  public static final String TEAMCITY_PROPERTY_STRUCTURE_CACHE_WARM_UP_THREADS = "clearcase.structure.cache.warm.up.threads"; //$NON-NLS-1$
+  @NonNls
   public static final String TEAMCITY_PROPERTY_AGENT_DISABLE_VALIDATION_ERRORS = "clearcase.agent.checkout.disable.validation.errors"; //$NON-NLS-1$  
   @NonNls
   public static final String TEAMCITY_PROPERTY_DO_NOT_TREAT_MAIN_AS_VERSION_IDENTIFIER = "clearcase.do.not.treat.main.as.version.identifier"; //$NON-NLS-1$
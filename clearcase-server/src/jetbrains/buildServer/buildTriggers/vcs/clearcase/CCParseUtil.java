@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -60,6 +61,17 @@ public class CCParseUtil {
                                          @NotNull final Revision fromVersion,
                                          @Nullable final Revision toVersion,
                                          @Nullable final ChangedFilesProcessor fileProcessor) throws IOException, VcsException {
+    processChangedFiles(connection, fromVersion, toVersion, fileProcessor, false);
+  }
+
+  /**
+   * @param needComments true if the file processor uses comments and activities of the processed changes
+   */
+  public static void processChangedFiles(final ClearCaseConnection connection,
+                                         @NotNull final Revision fromVersion,
+                                         @Nullable final Revision toVersion,
+                                         @Nullable final ChangedFilesProcessor fileProcessor,
+                                         final boolean needComments) throws IOException, VcsException {
     LOG.debug(String.format("Processing changes: fromVersion = [%s], toVersion = [%s]", fromVersion, toVersion));
 
     final int pastMinutes = getLookForTheChangesInThePastMinutes();
@@ -70,6 +82,10 @@ public class CCParseUtil {
       LOG.debug(String.format("Look for the changes in the past: true, %d minute(s)", pastMinutes));
     }
 
+    if (fileProcessor != null) {
+      invalidateChangedAttributes(connection, fromVersion.shiftToPast(pastMinutes));
+    }
+
     final HistoryElementIterator iterator = getChangesIterator(connection, fromVersion.shiftToPast(pastMinutes));
 
     final ChangesInverter actualChangesProcessor = fileProcessor == null ? null : new ChangesInverter(fileProcessor),
@@ -100,13 +116,51 @@ public class CCParseUtil {
     }
 
     if (ignoringChangesProcessor != null) {
+      ignoringChangesProcessor.loadDetails(connection, false);
       ignoringChangesProcessor.processCollectedChangesInInvertedOrder();
     }
     if (actualChangesProcessor != null) {
+      actualChangesProcessor.loadDetails(connection, needComments);
       actualChangesProcessor.processCollectedChangesInInvertedOrder();
     }
   }
 
+  /**
+   * "protect" is a minor event, so the attribute changes are looked for in the minor events, not in the changes.
+   * The minor events of a view are read at most once per {@link Constants#TEAMCITY_PROPERTY_FILE_ATTRIBUTE_CHECK_INTERVAL}
+   * since the previous check of the view, the first check of the view after the server start reads them since the requested version.
+   */
+  private static void invalidateChangedAttributes(@NotNull final ClearCaseConnection connection, @NotNull final Revision fromVersion) throws IOException, VcsException {
+    final FileAttributeCache cache = FileAttributeCache.getInstance();
+    final String view = connection.getViewWholePath();
+    final long checkTime = System.currentTimeMillis();
+    final Long lastCheckTime = cache.getCheckTime(view);
+    final long interval = TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_FILE_ATTRIBUTE_CHECK_INTERVAL, 60) * Dates.ONE_SECOND;
+    if (lastCheckTime != null && checkTime - lastCheckTime < interval) return;
+
+    final Revision from = lastCheckTime == null ? fromVersion : Revision.fromDate(new Date(lastCheckTime)).shiftToPast(getLookForTheChangesInThePastMinutes());
+    final HistoryElementIterator iterator = connection.getMinorEventsIterator(from, false);
+    try {
+      while (iterator.hasNext()) {
+        invalidateChangedAttributes(connection, iterator.next());
+      }
+    }
+    finally {
+      iterator.close();
+    }
+    cache.checked(view, lastCheckTime, checkTime);
+  }
+
+  /**
+   * Lets other readers of the minor events (e.g. the label check of the structure cache) invalidate the attributes,
+   * they report the check by {@link FileAttributeCache#checked(String, Long, long)}
+   */
+  public static void invalidateChangedAttributes(@NotNull final ClearCaseConnection connection, @NotNull final HistoryElement element) {
+    if (FileAttributeCache.isAttributeChangeEvent(element)) {
+      FileAttributeCache.getInstance().invalidateElement(connection.getElementName(element.getObjectName()));
+    }
+  }
+
   public static int getLookForTheChangesInThePastMinutes() {
     return TeamCityProperties.getInteger("clearcase.look.for.the.changes.in.the.past.minutes", 0);
   }
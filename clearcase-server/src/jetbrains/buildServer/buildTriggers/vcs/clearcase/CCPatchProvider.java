@@ -20,6 +20,8 @@ import com.intellij.execution.ExecutionException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
@@ -28,6 +30,7 @@ import jetbrains.buildServer.vcs.VcsSupportUtil;
 import jetbrains.buildServer.vcs.patches.PatchBuilder;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class CCPatchProvider {
 
@@ -36,9 +39,14 @@ public class CCPatchProvider {
   private File myTempFile;
   private final ClearCaseConnection myConnection;
   public static final String CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME = "clearcase.optimize.initial.checkout";
+  public static final String PATCH_PARALLELISM_PROPERTY_NAME = "clearcase.patch.parallelism";
+  public static final String PATCH_MAX_STAGED_MB_PROPERTY_NAME = "clearcase.patch.max.staged.mb";
+  public static final String PATCH_DEDUPLICATION_PROPERTY_NAME = "clearcase.patch.deduplication";
+  public static final String VERIFIED_INITIAL_CHECKOUT_PROPERTY_NAME = "clearcase.verified.initial.checkout";
   private static final boolean CC_OPTIMIZE_CHECKOUT = TeamCityProperties.getBoolean(CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME);
   private static final String EXECUTABLE_ATTR = "ugo+x";
   private final boolean myUseCCCache;
+  @Nullable private PatchContentIndex myContentIndex;
 
   public CCPatchProvider(ClearCaseConnection connection, final boolean useCcCache) {
     myConnection = connection;
@@ -47,6 +55,7 @@ public class CCPatchProvider {
 
   public void buildPatch(final PatchBuilder builder, final Revision fromVersion, final Revision lastVersion)
     throws IOException, VcsException, ExecutionException {
+    myContentIndex = createContentIndex(fromVersion != null && !myConnection.isConfigSpecWasChanged() ? fromVersion : null);
     try {
       if (fromVersion == null) {
         if (CC_OPTIMIZE_CHECKOUT) {
@@ -54,8 +63,11 @@ public class CCPatchProvider {
                    "Remove internal property '" + CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME + "' to disable this optimization.");
           VcsSupportUtil.exportFilesFromDisk(builder, new File(myConnection.getViewWholePath()));
         }
+        else if (TeamCityProperties.getBoolean(VERIFIED_INITIAL_CHECKOUT_PROPERTY_NAME) && !myConnection.isDynamicView()) {
+          buildVerifiedInitialPatch(builder, lastVersion);
+        }
         else {
-          myConnection.processAllVersions(lastVersion, createFileProcessor(builder), false, myUseCCCache);
+          processAllVersions(builder, lastVersion);
         }
       }
       else if (!myConnection.isConfigSpecWasChanged()) {
@@ -79,11 +91,19 @@ public class CCPatchProvider {
               }
 
               public void fileDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException {
-                builder.deleteFile(new File(getRelativePath(simpleChild)), false);
+                final String relativePath = getRelativePath(simpleChild);
+                if (myContentIndex != null) {
+                  myContentIndex.forget(relativePath);
+                }
+                builder.deleteFile(new File(relativePath), false);
               }
 
               public void directoryDeleted(@NotNull final SimpleDirectoryChildElement simpleChild) throws IOException {
-                builder.deleteDirectory(new File(getRelativePath(simpleChild)), false);
+                final String relativePath = getRelativePath(simpleChild);
+                if (myContentIndex != null) {
+                  myContentIndex.directoryDeleted(relativePath);
+                }
+                builder.deleteDirectory(new File(relativePath), false);
               }
 
               public void directoryAdded(@NotNull final SimpleDirectoryChildElement simpleChild) throws VcsException, IOException {
@@ -102,9 +122,13 @@ public class CCPatchProvider {
         });
       }
       else {
-        myConnection.processAllVersions(lastVersion, createFileProcessor(builder), false, myUseCCCache);
+        processAllVersions(builder, lastVersion);
+      }
+      if (myContentIndex != null) {
+        myContentIndex.save(lastVersion);
       }
     } finally {
+      myContentIndex = null;
       if (myTempFile != null) {
         FileUtil.delete(myTempFile);
       }
@@ -147,39 +171,115 @@ public class CCPatchProvider {
     };
   }
 
+  /**
+   * Full patch: the file contents are loaded in parallel unless the view is dynamic (the contents are read directly then)
+   */
+  private void processAllVersions(final PatchBuilder builder, final Revision lastVersion) throws VcsException {
+    final int parallelism = TeamCityProperties.getInteger(PATCH_PARALLELISM_PROPERTY_NAME, 4);
+    if (parallelism <= 1 || myConnection.isDynamicView()) {
+      myConnection.processAllVersions(lastVersion, createFileProcessor(builder), false, myUseCCCache);
+      return;
+    }
+
+    final long maxStagedBytes = TeamCityProperties.getInteger(PATCH_MAX_STAGED_MB_PROPERTY_NAME, 256) * 1024L * 1024L;
+    final ParallelPatchProcessor processor = new ParallelPatchProcessor(myConnection, builder, parallelism, maxStagedBytes, myContentIndex);
+    try {
+      myConnection.processAllVersions(lastVersion, processor, false, myUseCCCache);
+      processor.finish();
+    }
+    finally {
+      processor.dispose();
+    }
+  }
+
+  /**
+   * Safe variant of {@link #CLEARCASE_OPTIMIZE_INITIAL_CHECKOUT_PROPERTY_NAME}: the file is taken from the snapshot view
+   * only if the view has exactly the version selected for the requested revision, the other files are loaded by "get"
+   */
+  private void buildVerifiedInitialPatch(final PatchBuilder builder, final Revision lastVersion) throws VcsException {
+    final Map<String, String> loadedVersions = myConnection.getLoadedVersions();
+    final String viewWholePath = CCPathElement.normalizeSeparators(myConnection.getViewWholePath());
+    final VersionProcessor fileProcessor = createFileProcessor(builder);
+    final int[] fromDisk = new int[1], loaded = new int[1];
+
+    myConnection.processAllVersions(lastVersion, new VersionProcessor() {
+      public void processFile(final String fileFullPath,
+                              final String relPath,
+                              final String pname,
+                              final String version,
+                              final ClearCaseConnection clearCaseConnection,
+                              final boolean text,
+                              final boolean executable) throws VcsException {
+        final String ioPath = CCPathElement.normalizeSeparators(pname);
+        final String viewRelPath = ioPath.startsWith(viewWholePath + File.separator) ? ioPath.substring(viewWholePath.length() + 1) : null;
+        final File diskFile = new File(ioPath);
+        if (viewRelPath != null && version != null &&
+            CCPathElement.normalizeSeparators(version).equals(loadedVersions.get(viewRelPath)) && diskFile.isFile()) {
+          try {
+            writeFile(builder, relPath, diskFile, text, executable);
+          }
+          catch (final IOException e) {
+            throw new VcsException(e);
+          }
+          fromDisk[0]++;
+        }
+        else {
+          fileProcessor.processFile(fileFullPath, relPath, pname, version, clearCaseConnection, text, executable);
+          loaded[0]++;
+        }
+      }
+
+      public void processDirectory(final String fileFullPath,
+                                   final String relPath,
+                                   final String pname,
+                                   final String version,
+                                   final ClearCaseConnection clearCaseConnection) throws VcsException {
+        fileProcessor.processDirectory(fileFullPath, relPath, pname, version, clearCaseConnection);
+      }
+
+      public void finishProcessingDirectory() throws VcsException {
+        fileProcessor.finishProcessingDirectory();
+      }
+    }, false, myUseCCCache);
+
+    LOG.info("Initial checkout of " + myConnection.getViewWholePath() + ": " + fromDisk[0] + " file(s) taken from the view, " + loaded[0] + " file(s) loaded");
+  }
+
+  private void writeFile(final PatchBuilder builder, final String relativePath, final File file, final boolean text, final boolean executable) throws IOException {
+    if (myContentIndex != null) {
+      myContentIndex.fileWritten(relativePath, file, getIndexMode(text, executable));
+    }
+    final String fileMode = executable ? EXECUTABLE_ATTR : null;
+    final FileInputStream input = new FileInputStream(file);
+    try {
+      if (text) {
+        builder.changeOrCreateTextFile(new File(relativePath), fileMode, input, file.length(), null);
+      }
+      else {
+        builder.changeOrCreateBinaryFile(new File(relativePath), fileMode, input, file.length());
+      }
+    }
+    finally {
+      input.close();
+    }
+  }
+
   private String getRelativePath(final String path) {
     return myConnection.getRelativePath(path);
   }
 
   private void loadFile(final String line, final PatchBuilder builder, String relativePath) throws VcsException {
     try {
+      if (myConnection.isDynamicView() && loadFileFromDynamicView(line, builder, relativePath)) {
+        return;
+      }
+
       final File tempFile = getTempFile();
       FileUtil.delete(tempFile);
 
       myConnection.loadFileContent(tempFile, line);
       if (tempFile.isFile()) {
-        final String pathWithoutVersion =
-          CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(line, myConnection.getViewWholePath(), null);
-        ClearCaseFileAttr fileAttr = myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
-
-        final String fileMode = fileAttr.isIsExecutable() ? EXECUTABLE_ATTR : null;
-        if (fileAttr.isIsText()) {
-          final FileInputStream input = new FileInputStream(tempFile);
-          try {
-            builder.changeOrCreateTextFile(new File(relativePath), fileMode, input, tempFile.length(), null);
-          } finally {
-            input.close();
-          }
-        }
-        else {
-          final FileInputStream input = new FileInputStream(tempFile);
-          try {
-            builder.changeOrCreateBinaryFile(new File(relativePath), fileMode, input, tempFile.length());
-          } finally {
-            input.close();
-          }
-        }
-
+        addFile(line, builder, relativePath, new FileInputStream(tempFile), tempFile.length(), tempFile);
       }
     } catch (ExecutionException e) {
       throw new VcsException(e);
@@ -188,12 +288,15 @@ public class CCPatchProvider {
     } catch (IOException primary) {
       //TODO: apply ILineFilter for such errors?
       //TW-10811 hotfix: threat files that cannot get own context as "rmelem'ed"
-      if (primary.getMessage().contains("Operation \"get cleartext\" failed: not a ClearCase object.")) {
+      if (isRemovedElementError(primary)) {
         try {
           LOG.warn(
             String.format("Could not get content of \"%s\", perhaps element was \"rmelem\"'ed. 'll produce deletion. Original message: %s",
                           line,
                           primary.getMessage()));
+          if (myContentIndex != null) {
+            myContentIndex.forget(relativePath);
+          }
           builder.deleteFile(new File(relativePath), false);
         } catch (IOException secondary) {
           throw new VcsException(secondary.initCause(primary));//keep source exception as cause
@@ -204,6 +307,77 @@ public class CCPatchProvider {
     }
   }
 
+  /**
+   * @return false if the version cannot be read directly, "get" should be used then
+   */
+  private boolean loadFileFromDynamicView(final String line, final PatchBuilder builder, final String relativePath) throws IOException, VcsException {
+    final File versionFile = DynamicViewContentReader.getVersionFile(line);
+    if (versionFile == null) return false;
+    final InputStream input;
+    final long length;
+    try {
+      length = versionFile.length();
+      input = DynamicViewContentReader.openStream(versionFile);
+    }
+    catch (final IOException e) {
+      LOG.debug("Cannot read \"" + line + "\" directly, will use \"get\": " + e.getLocalizedMessage());
+      return false;
+    }
+    addFile(line, builder, relativePath, input, length, null);
+    return true;
+  }
+
+  /**
+   * @param content the file holding the content if any, it is used to skip the files the agent already has, see {@link PatchContentIndex}
+   */
+  private void addFile(final String line,
+                       final PatchBuilder builder,
+                       final String relativePath,
+                       final InputStream input,
+                       final long length,
+                       @Nullable final File content) throws IOException, VcsException {
+    try {
+      final String pathWithoutVersion =
+        CCPathElement.replaceLastVersionAndReturnFullPathWithVersions(line, myConnection.getViewWholePath(), null);
+      ClearCaseFileAttr fileAttr = myConnection.loadFileAttr(pathWithoutVersion + CCParseUtil.CC_VERSION_SEPARATOR);
+
+      final String fileMode = fileAttr.isIsExecutable() ? EXECUTABLE_ATTR : null;
+      if (myContentIndex != null) {
+        if (content == null) {
+          myContentIndex.forget(relativePath);
+        }
+        else if (!myContentIndex.fileWritten(relativePath, content, getIndexMode(fileAttr.isIsText(), fileAttr.isIsExecutable()))) {
+          return;
+        }
+      }
+      if (fileAttr.isIsText()) {
+        builder.changeOrCreateTextFile(new File(relativePath), fileMode, input, length, null);
+      }
+      else {
+        builder.changeOrCreateBinaryFile(new File(relativePath), fileMode, input, length);
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  @NotNull
+  static String getIndexMode(final boolean text, final boolean executable) {
+    return (text ? "|t" : "|") + (executable ? "x" : "");
+  }
+
+  @Nullable
+  private PatchContentIndex createContentIndex(@Nullable final Revision fromVersion) {
+    if (!TeamCityProperties.getBoolean(PATCH_DEDUPLICATION_PROPERTY_NAME)) return null;
+    final File file = myConnection.getPatchContentIndexFile();
+    return file == null ? null : new PatchContentIndex(file, fromVersion);
+  }
+
+  static boolean isRemovedElementError(@NotNull final IOException e) {
+    final String message = e.getMessage();
+    return message != null && message.contains("Operation \"get cleartext\" failed: not a ClearCase object.");
+  }
+
   public void dispose() {
     if (myTempFile != null) {
       FileUtil.delete(myTempFile);
@@ -315,6 +315,26 @@ public class CCPathElement {
     return normalizePath(file1.getAbsolutePath()).equals(normalizePath(file2.getAbsolutePath()));
   }
 
+  /**
+   * The components before the first version-extended one are the VOB tag, the path addresses the element independently
+   * of the config spec only if every following component is version-extended, e.g. "vob@@/main/5/dir@@/main/2/foo.c@@/main/7"
+   * @param from the index of the first component within the view (after the view root)
+   * @param to the index after the last component which must be version-extended
+   */
+  public static boolean isVersionExtendedWithinVob(@NotNull final List<CCPathElement> elements, final int from, final int to) {
+    boolean inVob = false;
+    for (int i = from; i < to; i++) {
+      final String version = elements.get(i).getVersion();
+      if (version != null && version.length() > CCParseUtil.CC_VERSION_SEPARATOR.length()) {
+        inVob = true;
+      }
+      else if (inVob) {
+        return false;
+      }
+    }
+    return inVob;
+  }
+
   public static String removeUnneededDots(final String fullPath) {
     return createPath(splitIntoPathElements(fullPath));
   }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.TCStreamUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The file keeping a server-wide in-memory cache across restarts. Every change of the cache is appended to the file as a record
+ * (the key and the value, or no value for a removed entry), the file is rewritten from memory when it holds too many outdated records.
+ * The journal is not thread-safe, the owning cache calls it under its own lock.
+ */
+abstract class CacheJournal<V> {
+  private static final Logger LOG = Logger.getLogger(CacheJournal.class);
+
+  @NotNull private final File myFile;
+  private final int myFormatVersion;
+  @NotNull private final String myDescription;
+  @Nullable private DataOutputStream myOutput;
+  private int myRecordsInFile;
+
+  CacheJournal(@NotNull final File file, final int formatVersion, @NotNull final String description) {
+    myFile = file;
+    myFormatVersion = formatVersion;
+    myDescription = description;
+  }
+
+  /**
+   * @return the value of the record, null if the record removes the entry
+   */
+  @Nullable
+  protected abstract V readValue(@NotNull DataInputStream input) throws IOException;
+
+  /**
+   * @param value the value of the entry, null if the entry is removed
+   */
+  protected abstract void writeValue(@NotNull DataOutputStream output, @Nullable V value) throws IOException;
+
+  void load(@NotNull final Map<String, V> entries) {
+    if (!myFile.isFile()) return;
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      if (input.readInt() != myFormatVersion) {
+        LOG.info("Unsupported format of the " + myDescription + " " + myFile + ", the cache will be recreated");
+        return;
+      }
+      while (true) {
+        final String key;
+        try {
+          key = TCStreamUtil.readString(input);
+        }
+        catch (final EOFException e) {
+          break;
+        }
+        final V value = readValue(input);
+        if (value == null) {
+          entries.remove(key);
+        }
+        else {
+          entries.put(key, value);
+        }
+        myRecordsInFile++;
+      }
+    }
+    catch (final IOException e) {
+      LOG.info("Failed to read the " + myDescription + " " + myFile + ", the rest of the file will be ignored: " + e.getLocalizedMessage());
+    }
+    finally {
+      FileUtil.close(input);
+    }
+  }
+
+  /**
+   * @param value the new value of the entry, null if the entry was removed
+   * @param entries all the entries of the cache, they are written if the file is rewritten
+   */
+  void append(@NotNull final String key, @Nullable final V value, @NotNull final Map<String, V> entries) {
+    try {
+      if (myOutput == null || myRecordsInFile > 2 * entries.size() + 1000) {
+        rewrite(entries);
+      }
+      else {
+        write(myOutput, key, value);
+        myOutput.flush();
+        myRecordsInFile++;
+      }
+    }
+    catch (final IOException e) {
+      LOG.warn("Failed to write the " + myDescription + " " + myFile + ": " + e.getLocalizedMessage());
+      close();
+      FileUtil.delete(myFile);
+    }
+  }
+
+  void close() {
+    if (myOutput != null) {
+      FileUtil.close(myOutput);
+      myOutput = null;
+    }
+  }
+
+  private void rewrite(@NotNull final Map<String, V> entries) throws IOException {
+    close();
+    final File tmp = new File(myFile.getPath() + ".tmp");
+    final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      output.writeInt(myFormatVersion);
+      for (final Map.Entry<String, V> entry : entries.entrySet()) {
+        write(output, entry.getKey(), entry.getValue());
+      }
+    }
+    finally {
+      output.close();
+    }
+    FileUtil.delete(myFile);
+    if (!tmp.renameTo(myFile)) {
+      throw new IOException("Failed to rename " + tmp + " to " + myFile);
+    }
+    myRecordsInFile = entries.size();
+    myOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myFile, true)));
+  }
+
+  private void write(@NotNull final DataOutputStream output, @NotNull final String key, @Nullable final V value) throws IOException {
+    TCStreamUtil.writeString(output, key);
+    writeValue(output, value);
+  }
+}
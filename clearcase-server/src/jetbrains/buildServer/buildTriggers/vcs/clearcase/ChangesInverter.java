@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import jetbrains.buildServer.vcs.VcsException;
 import org.jetbrains.annotations.NotNull;
 
@@ -35,29 +36,52 @@ public class ChangesInverter implements ChangedFilesProcessor {
   }
 
   public void processChangedFile(@NotNull final HistoryElement element) throws VcsException, IOException {
-    addChange(new Change() {
+    addChange(new Change(element) {
       public void process() throws IOException, VcsException {
-        myBaseProcessor.processChangedFile(element);
+        myBaseProcessor.processChangedFile(myElement);
       }
     });
   }
 
   public void processChangedDirectory(@NotNull final HistoryElement element) throws IOException, VcsException {
-    addChange(new Change() {
+    addChange(new Change(element) {
       public void process() throws IOException, VcsException {
-        myBaseProcessor.processChangedDirectory(element);
+        myBaseProcessor.processChangedDirectory(myElement);
       }
     });
   }
 
   public void processDestroyedFileVersion(@NotNull final HistoryElement element) throws VcsException {
-    addChange(new Change() {
+    addChange(new Change(element) {
       public void process() throws VcsException {
-        myBaseProcessor.processDestroyedFileVersion(element);
+        myBaseProcessor.processDestroyedFileVersion(myElement);
       }
     });
   }
 
+  /**
+   * Loads comments and activities omitted by the lightweight "lshistory" format for the collected changes only.
+   *
+   * @param allDetails if false, only the details required to resolve destroyed versions are loaded
+   */
+  public void loadDetails(@NotNull final ClearCaseConnection connection, final boolean allDetails) throws IOException, VcsException {
+    final List<HistoryElement> elements = new ArrayList<HistoryElement>();
+    for (final Change change : myInvertedChanges) {
+      if (!change.myElement.isDetailsLoaded() && (allDetails || change.myElement.isDestroyVersionEvent())) {
+        elements.add(change.myElement);
+      }
+    }
+    if (elements.isEmpty()) return;
+
+    final Map<Long, HistoryElement> detailed = connection.loadHistoryDetails(elements);
+    for (final Change change : myInvertedChanges) {
+      final HistoryElement element = detailed.get(change.myElement.getEventID());
+      if (element != null) {
+        change.myElement = element;
+      }
+    }
+  }
+
   public void processCollectedChangesInInvertedOrder() throws IOException, VcsException {
     for (final Change change : myInvertedChanges) {
       change.process();
@@ -68,7 +92,13 @@ public class ChangesInverter implements ChangedFilesProcessor {
     myInvertedChanges.add(0, change);
   }
 
-  private static interface Change {
-    void process() throws IOException, VcsException;
+  private static abstract class Change {
+    @NotNull protected HistoryElement myElement;
+
+    protected Change(@NotNull final HistoryElement element) {
+      myElement = element;
+    }
+
+    public abstract void process() throws IOException, VcsException;
   }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.ClearCaseStructureCache;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.vcs.FileRule;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the state of the first ClearCaseConnection created for a VCS root (config spec, view update) and creates
+ * lightweight connections for the include rules of the same collection/labeling from it.
+ * The directory content and the directory version caches are shared between these connections,
+ * so the session must not outlive one revision range.
+ */
+public class ClearCaseCollectionSession {
+  private static final Logger LOG = Logger.getLogger(ClearCaseCollectionSession.class);
+
+  @NotNull public static final String PARALLELISM_PROPERTY_NAME = "clearcase.include.rules.parallelism";
+
+  @NotNull private final VcsRoot myRoot;
+  @NotNull private final ViewPath myViewPath;
+  @Nullable private final ClearCaseStructureCache myCache;
+  @NotNull private final ConfigSpec myConfigSpec;
+  private final boolean myConfigSpecWasChanged;
+
+  @NotNull private final Map<String, List<SimpleDirectoryChildElement>> myDirectoryContentCache =
+    Collections.synchronizedMap(new HashMap<String, List<SimpleDirectoryChildElement>>());
+  @NotNull private final Map<String, Version> myDirectoryVersionCache = Collections.synchronizedMap(new HashMap<String, Version>());
+
+  private ClearCaseCollectionSession(@NotNull final VcsRoot root,
+                                     @NotNull final ViewPath viewPath,
+                                     @Nullable final ClearCaseStructureCache cache,
+                                     @NotNull final ClearCaseConnection connection) {
+    myRoot = root;
+    myViewPath = viewPath;
+    myCache = cache;
+    myConfigSpec = connection.getConfigSpec();
+    myConfigSpecWasChanged = connection.isConfigSpecWasChanged();
+  }
+
+  @NotNull
+  public static ClearCaseCollectionSession open(@NotNull final VcsRoot root,
+                                                @Nullable final ClearCaseStructureCache cache,
+                                                final boolean checkCSChange) throws VcsException, IOException {
+    final ViewPath viewPath = ClearCaseSupport.getViewPath(root);
+    return ClearCaseInteractiveProcessPool.doWithProcess(viewPath.getWholePath(), new ClearCaseInteractiveProcessPool.ProcessComputable<ClearCaseCollectionSession>() {
+      public ClearCaseCollectionSession compute(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
+        return new ClearCaseCollectionSession(root, viewPath, cache, new ClearCaseConnection(viewPath, process, cache, root, checkCSChange));
+      }
+    });
+  }
+
+  public void withConnection(@NotNull final FileRule includeRule, @NotNull final ClearCaseSupport.ConnectionProcessor processor) throws VcsException, IOException {
+    withConnection(createViewPath(includeRule), processor);
+  }
+
+  public void withConnection(@NotNull final ViewPath viewPath, @NotNull final ClearCaseSupport.ConnectionProcessor processor) throws VcsException, IOException {
+    ClearCaseInteractiveProcessPool.doWithProcess(viewPath, new ClearCaseInteractiveProcessPool.ProcessRunnable() {
+      public void run(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
+        processor.process(new ClearCaseConnection(viewPath, process, ClearCaseCollectionSession.this));
+      }
+    });
+  }
+
+  /**
+   * Runs the processor for every include rule, each on its own cleartool process.
+   * The rules are processed concurrently, see {@link #PARALLELISM_PROPERTY_NAME}.
+   */
+  public void processIncludeRules(@NotNull final Collection<? extends FileRule> includeRules,
+                                  @NotNull final ClearCaseSupport.ConnectionProcessor processor) throws VcsException, IOException {
+    final int parallelism = Math.min(includeRules.size(), Math.max(1, TeamCityProperties.getInteger(PARALLELISM_PROPERTY_NAME, 4)));
+    if (parallelism <= 1) {
+      for (final FileRule includeRule : includeRules) {
+        withConnection(includeRule, processor);
+      }
+      return;
+    }
+
+    final ExecutorService executor = ExecutorsFactory.newFixedExecutor("ClearCase include rules processing", parallelism);
+    try {
+      final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final FileRule includeRule : includeRules) {
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            withConnection(includeRule, processor);
+            return null;
+          }
+        }));
+      }
+      waitFor(futures);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Creates the connections for the threads of an executor which run many short operations on the whole view, see {@link WorkerConnections}
+   */
+  @NotNull
+  WorkerConnections createWorkerConnections() {
+    return new WorkerConnections();
+  }
+
+  static void waitFor(@NotNull final List<Future<Void>> futures) throws VcsException, IOException {
+    Throwable error = null;
+    for (final Future<Void> future : futures) {
+      try {
+        future.get();
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException(e);
+      }
+      catch (final ExecutionException e) {
+        if (error == null) {
+          error = e.getCause();
+        }
+        else {
+          LOG.debug("Suppressed error of parallel processing: " + e.getCause(), e.getCause());
+        }
+      }
+    }
+    if (error instanceof VcsException) throw (VcsException)error;
+    if (error instanceof IOException) throw (IOException)error;
+    if (error != null) throw new VcsException(error);
+  }
+
+  @NotNull
+  private ViewPath createViewPath(@NotNull final FileRule includeRule) throws VcsException {
+    final ViewPath viewPath = new ViewPath(myViewPath.getClearCaseViewPath(), myViewPath.getRelativePathWithinTheView());
+    if (includeRule.getFrom().length() > 0) {
+      viewPath.setIncludeRuleFrom(includeRule);
+    }
+    return viewPath;
+  }
+
+  @NotNull
+  VcsRoot getRoot() {
+    return myRoot;
+  }
+
+  @NotNull
+  public ViewPath getViewPath() {
+    return myViewPath;
+  }
+
+  @Nullable
+  ClearCaseStructureCache getCache() {
+    return myCache;
+  }
+
+  @NotNull
+  ConfigSpec getConfigSpec() {
+    return myConfigSpec;
+  }
+
+  boolean isConfigSpecWasChanged() {
+    return myConfigSpecWasChanged;
+  }
+
+  @NotNull
+  Map<String, List<SimpleDirectoryChildElement>> getDirectoryContentCache() {
+    return myDirectoryContentCache;
+  }
+
+  @NotNull
+  Map<String, Version> getDirectoryVersionCache() {
+    return myDirectoryVersionCache;
+  }
+
+  /**
+   * Keeps one cleartool process and connection for the whole view per worker thread: the process is started on the first
+   * operation of the thread and reused by all its later operations until {@link #close()}, which must be called after the executor is shut down.
+   */
+  class WorkerConnections {
+    @NotNull private final Map<Thread, ClearCaseConnection> myConnections = new HashMap<Thread, ClearCaseConnection>();
+    @NotNull private final List<ClearCaseInteractiveProcess> myProcesses = new ArrayList<ClearCaseInteractiveProcess>();
+    private boolean myClosed;
+
+    private WorkerConnections() {
+    }
+
+    void withConnection(@NotNull final ClearCaseSupport.ConnectionProcessor processor) throws VcsException, IOException {
+      processor.process(getConnection());
+    }
+
+    void close() {
+      final List<ClearCaseInteractiveProcess> processes;
+      synchronized (this) {
+        myClosed = true;
+        processes = new ArrayList<ClearCaseInteractiveProcess>(myProcesses);
+        myProcesses.clear();
+        myConnections.clear();
+      }
+      for (final ClearCaseInteractiveProcess process : processes) {
+        process.destroy();
+      }
+    }
+
+    @NotNull
+    private ClearCaseConnection getConnection() throws VcsException, IOException {
+      final Thread thread = Thread.currentThread();
+      synchronized (this) {
+        if (myClosed) throw new VcsException("The connections of the view \"" + myViewPath.getWholePath() + "\" are closed");
+        final ClearCaseConnection connection = myConnections.get(thread);
+        if (connection != null) return connection;
+      }
+      final ClearCaseInteractiveProcess process = ClearCaseInteractiveProcessPool.createProcess(myViewPath.getWholePath());
+      final ClearCaseConnection connection;
+      try {
+        connection = new ClearCaseConnection(myViewPath, process, ClearCaseCollectionSession.this);
+      }
+      catch (final VcsException e) {
+        process.destroy();
+        throw e;
+      }
+      catch (final IOException e) {
+        process.destroy();
+        throw e;
+      }
+      synchronized (this) {
+        if (myClosed) {
+          process.destroy();
+          throw new VcsException("The connections of the view \"" + myViewPath.getWholePath() + "\" are closed");
+        }
+        myProcesses.add(process);
+        myConnections.put(thread, connection);
+      }
+      return connection;
+    }
+  }
+}
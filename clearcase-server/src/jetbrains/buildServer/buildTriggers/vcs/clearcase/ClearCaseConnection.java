@@ -19,12 +19,12 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase;
 import com.intellij.execution.ExecutionException;
 import com.intellij.util.Consumer;
 import java.io.*;
+import java.text.ParseException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecLoadRule;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecParseUtil;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
@@ -34,8 +34,9 @@ import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.VersionTree;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.Hash;
 import jetbrains.buildServer.util.MultiMap;
-import jetbrains.buildServer.vcs.IncludeRule;
+import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import jetbrains.buildServer.vcs.clearcase.CTool;
@@ -56,8 +57,6 @@ public class ClearCaseConnection {
 
   private final boolean myUCMSupported;
 
-  private static final Map<String, Semaphore> viewName2Semaphore = new ConcurrentHashMap<String, Semaphore>();
-
   private static final String UNIX_VIEW_PATH_PREFIX = "/view/";
 
   static final Logger LOG = Logger.getLogger(ClearCaseConnection.class);
@@ -77,6 +76,20 @@ public class ClearCaseConnection {
       + DELIMITER + "%[activity]p" //activity    
       + LINE_END_DELIMITER + "\\n";
 
+  // the same as FORMAT but without comment and activity, they are loaded later by loadHistoryDetails() for the actual changes only
+  public final static String LIGHTWEIGHT_FORMAT = "%u" //user
+      + DELIMITER + "%Nd" //date
+      + DELIMITER + "%En" //object name
+      + DELIMITER + "%m" //object kind
+      + DELIMITER + "%Vn" //objectversion
+      + DELIMITER + "%o" //operation
+      + DELIMITER + "%e" //event
+      + LINE_END_DELIMITER + "\\n";
+
+  private final static String DETAILS_FORMAT = "%Nc" //comment
+      + DELIMITER + "%[activity]p" //activity
+      + LINE_END_DELIMITER + "\\n";
+
   private final MultiMap<String, HistoryElement> myChangesToIgnore = new MultiMap<String, HistoryElement>();
 
   private final MultiMap<String, HistoryElement> myDeletedVersions = new MultiMap<String, HistoryElement>();
@@ -92,9 +105,9 @@ public class ClearCaseConnection {
   @NotNull private final ClearCaseInteractiveProcess myProcess;
 
   @NotNull
-  private final Map<String, List<SimpleDirectoryChildElement>> myDirectoryContentCache = new HashMap<String, List<SimpleDirectoryChildElement>>();
+  private final Map<String, List<SimpleDirectoryChildElement>> myDirectoryContentCache;
   @NotNull
-  private final Map<String, Version> myDirectoryVersionCache = new HashMap<String, Version>();
+  private final Map<String, Version> myDirectoryVersionCache;
 
   boolean isConfigSpecWasChanged() {
     return myConfigSpecWasChanged;
@@ -105,6 +118,18 @@ public class ClearCaseConnection {
                              final ClearCaseStructureCache cache,
                              final VcsRoot root,
                              final boolean checkCSChange) throws VcsException, IOException {
+    this(viewPath, process, cache, root, checkCSChange, true);
+  }
+
+  /**
+   * @param updateView false for read-only operations which do not depend on the snapshot view content (e.g. getting content by version)
+   */
+  public ClearCaseConnection(final ViewPath viewPath,
+                             @NotNull final ClearCaseInteractiveProcess process,
+                             final ClearCaseStructureCache cache,
+                             final VcsRoot root,
+                             final boolean checkCSChange,
+                             final boolean updateView) throws VcsException, IOException {
     // Explanation of config specs at:
     // http://www.philforhumanity.com/ClearCase_Support_17.html
 
@@ -112,6 +137,8 @@ public class ClearCaseConnection {
     myProcess = process;
     myCache = cache;
     myRoot = root;
+    myDirectoryContentCache = new HashMap<String, List<SimpleDirectoryChildElement>>();
+    myDirectoryVersionCache = new HashMap<String, Version>();
 
     myUCMSupported = isUCMView(root);//ucmSupported;
 
@@ -145,7 +172,32 @@ public class ClearCaseConnection {
     }
 
     //??
-    updateCurrentView();
+    if (updateView) {
+      updateCurrentView();
+    }
+  }
+
+  /**
+   * Creates the connection for the view path of one include rule reusing the config spec and the caches of the session,
+   * so neither config spec reading nor view update is performed
+   */
+  ClearCaseConnection(@NotNull final ViewPath viewPath,
+                      @NotNull final ClearCaseInteractiveProcess process,
+                      @NotNull final ClearCaseCollectionSession session) throws VcsException, IOException {
+    myViewPath = viewPath;
+    myProcess = process;
+    myCache = session.getCache();
+    myRoot = session.getRoot();
+    myDirectoryContentCache = session.getDirectoryContentCache();
+    myDirectoryVersionCache = session.getDirectoryVersionCache();
+
+    myUCMSupported = isUCMView(myRoot);
+    myConfigSpec = session.getConfigSpec();
+    myConfigSpecWasChanged = session.isConfigSpecWasChanged();
+
+    if (!myConfigSpec.isUnderLoadRules(getClearCaseViewPath(), myViewPath.getWholePath())) {
+      throw new VcsException("The path \"" + myViewPath.getWholePath() + "\" is not loaded by ClearCase view \"" + myViewPath.getClearCaseViewPath() + "\" according to its config spec.");
+    }
   }
 
   private static boolean isUCMView(final @NotNull VcsRoot root) {
@@ -160,7 +212,7 @@ public class ClearCaseConnection {
     return myViewPath.getWholePath();
   }
 
-  protected ConfigSpec getConfigSpec() {
+  public ConfigSpec getConfigSpec() {
     return myConfigSpec;
   }
 
@@ -269,6 +321,41 @@ public class ClearCaseConnection {
     return iterator;
   }
 
+  /**
+   * "mklabel", "rmlabel" and "protect" are minor events, so they are not reported by {@link #getChangesIterator(Revision)}.
+   * The returned iterator reports the minor events of all the elements under the config spec load rules within the view path
+   * (under the whole view path if there are no load rules), the caller filters them.
+   * @param withComments true if the caller needs the comments of the events (e.g. the label names), LIGHTWEIGHT_FORMAT is used otherwise
+   */
+  @NotNull
+  public HistoryElementIterator getMinorEventsIterator(@NotNull final Revision fromVersion, final boolean withComments) throws IOException, VcsException {
+    List<String> targets = getLSHistoryTargets();
+    if (targets.isEmpty()) {
+      targets = Collections.singletonList(getViewWholePath());
+    }
+    HistoryElementIterator iterator = doGetMinorEventsIterator(fromVersion, targets.get(0), withComments);
+    for (int i = 1; i < targets.size(); i++) {
+      iterator = new HistoryElementMerger(iterator, doGetMinorEventsIterator(fromVersion, targets.get(i), withComments));
+    }
+    return iterator;
+  }
+
+  @NotNull
+  private HistoryElementIterator doGetMinorEventsIterator(@NotNull final Revision fromVersion,
+                                                          @NotNull final String target,
+                                                          final boolean withComments) throws IOException, VcsException {
+    final List<String> optionList = new ArrayList<String>();
+    optionList.add("lshistory");
+    optionList.add("-eventid");
+    optionList.add("-minor");
+    fromVersion.appendLSHistoryOptions(optionList);
+    optionList.add("-fmt");
+    optionList.add(withComments ? FORMAT : LIGHTWEIGHT_FORMAT);
+    optionList.add("-recurse");
+    optionList.add(insertDots(target, true));
+    return new HistoryElementProvider(executeAndReturnProcessInput(ClearCaseSupport.makeArray(optionList)));
+  }
+
   private HistoryElementIterator doGetChangesIterator(@NotNull final Revision fromVersion,
                                                       @NotNull final String lsHistoryOptions) throws IOException, VcsException {
     try {
@@ -354,13 +441,129 @@ public class ClearCaseConnection {
       fromVersion.appendLSHistoryOptions(optionList);
     }
     optionList.add("-fmt");
-    optionList.add(FORMAT);
+    optionList.add(isLightweightHistory() ? LIGHTWEIGHT_FORMAT : FORMAT);
     optionList.addAll(Arrays.asList(Util.makeArguments(preparedOptions)));
     return executeAndReturnProcessInput(ClearCaseSupport.makeArray(optionList));
   }
 
+  private static boolean isLightweightHistory() {
+    return TeamCityProperties.getBoolean(Constants.TEAMCITY_PROPERTY_LSHISTORY_LIGHTWEIGHT);
+  }
+
+  /**
+   * Loads comments and activities for the history elements read with LIGHTWEIGHT_FORMAT.
+   * Version comments are loaded by batched "describe" calls, destroyed versions are resolved by "lshistory" of the element.
+   *
+   * @return detailed elements by event id, elements which details cannot be loaded are omitted
+   */
   @NotNull
-  private List<String> getLSHistoryOptions() {
+  Map<Long, HistoryElement> loadHistoryDetails(@NotNull final List<HistoryElement> elements) throws IOException, VcsException {
+    final Map<Long, HistoryElement> result = new HashMap<Long, HistoryElement>();
+    final List<HistoryElement> versionEvents = new ArrayList<HistoryElement>();
+    for (final HistoryElement element : elements) {
+      if (element.isDestroyVersionEvent()) {
+        final HistoryElement detailed = loadDestroyVersionDetails(element);
+        if (detailed != null) {
+          result.put(element.getEventID(), detailed);
+        }
+      }
+      else {
+        versionEvents.add(element);
+      }
+    }
+
+    final int batchSize = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_LSHISTORY_DETAILS_BATCH_SIZE, 100));
+    for (int from = 0; from < versionEvents.size(); from += batchSize) {
+      final List<HistoryElement> batch = versionEvents.subList(from, Math.min(from + batchSize, versionEvents.size()));
+      try {
+        loadVersionDetails(batch, result);
+      }
+      catch (final IOException e) {
+        LOG.debug("Failed to load details of " + batch.size() + " history element(s) at once, loading them one by one: " + e.getMessage());
+        for (final HistoryElement element : batch) {
+          try {
+            loadVersionDetails(Collections.singletonList(element), result);
+          }
+          catch (final IOException ignore) {
+            LOG.debug("Failed to load details of " + element.getLogRepresentation());
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private void loadVersionDetails(@NotNull final List<HistoryElement> batch, @NotNull final Map<Long, HistoryElement> result) throws IOException, VcsException {
+    final List<String> params = new ArrayList<String>();
+    params.add("describe");
+    params.add("-fmt");
+    params.add(DETAILS_FORMAT);
+    for (final HistoryElement element : batch) {
+      params.add(insertDots(element.getObjectName() + CCParseUtil.CC_VERSION_SEPARATOR + element.getObjectVersion(), "create directory version".equals(element.getEvent())));
+    }
+
+    final String output = readAll(executeAndReturnProcessInput(ClearCaseSupport.makeArray(params)));
+    final String[] records = output.split(Pattern.quote(LINE_END_DELIMITER + "\n"), -1);
+    if (records.length < batch.size()) {
+      throw new IOException("Unexpected \"describe\" output: " + records.length + " record(s) for " + batch.size() + " version(s)");
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      final String[] details = records[i].split(DELIMITER, 2);
+      final HistoryElement element = batch.get(i);
+      try {
+        result.put(element.getEventID(), element.withDetails(details[0], details.length > 1 ? details[1] : ""));
+      }
+      catch (final ParseException e) {
+        throw new VcsException(e);
+      }
+    }
+  }
+
+  @Nullable
+  private HistoryElement loadDestroyVersionDetails(@NotNull final HistoryElement element) throws IOException, VcsException {
+    final List<String> params = new ArrayList<String>();
+    params.add("lshistory");
+    params.add("-eventid");
+    Revision.fromChange(element.getChangeInfo()).shiftToPast(1).appendLSHistoryOptions(params);
+    params.add("-fmt");
+    params.add(FORMAT);
+    params.add(insertDots(extractElementPath(element.getObjectName()), false));
+
+    final HistoryElementIterator iterator = new HistoryElementProvider(executeAndReturnProcessInput(ClearCaseSupport.makeArray(params)));
+    try {
+      while (iterator.hasNext()) {
+        final HistoryElement candidate = iterator.next();
+        if (candidate.getEventID() == element.getEventID()) {
+          return candidate;
+        }
+      }
+    }
+    finally {
+      iterator.close();
+    }
+    LOG.debug("Failed to load details of " + element.getLogRepresentation());
+    return null;
+  }
+
+  @NotNull
+  private static String readAll(@NotNull final InputStream input) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    try {
+      final StringBuilder result = new StringBuilder();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        result.append(line).append('\n');
+      }
+      return result.toString();
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @NotNull
+  public List<String> getLSHistoryOptions() {
     final String lsHistoryOptionsString = getLSHistoryOptionsString();
     LOG.debug("Using the following options for \"lshistory\": " + lsHistoryOptionsString);
     return applyBranches(splitStringByVerticalBar(lsHistoryOptionsString));
@@ -442,17 +645,133 @@ public class ClearCaseConnection {
     if (defaultOptions != null)
       return defaultOptions;
 
+    if (TeamCityProperties.getBoolean(Constants.TEAMCITY_PROPERTY_LSHISTORY_SCOPE_TO_LOAD_RULES)) {
+      final List<String> targets = getLSHistoryTargets();
+      if (!targets.isEmpty()) {
+        final List<String> options = new ArrayList<String>();
+        for (final String target : targets) {
+          options.add("-recurse \"" + target + "\"");
+        }
+        return StringUtil.join(options, "|");
+      }
+    }
+
     return "-all " + PATH;
   }
 
+  /**
+   * @return the load rules of the config spec intersected with the view path, so "lshistory" does not report the events
+   * of the whole VOB; empty if there is no load rules (e.g. dynamic view)
+   */
+  @NotNull
+  private List<String> getLSHistoryTargets() {
+    final File wholePath = myViewPath.getWholePathFile();
+    final Set<File> targets = new LinkedHashSet<File>();
+    for (final ConfigSpecLoadRule loadRule : myConfigSpec.getLoadRules()) {
+      final File loadRuleFile = new File(getClearCaseViewPath(), loadRule.getRelativePath());
+      if (FileUtil.isAncestor(loadRuleFile, wholePath, false)) {
+        return Collections.singletonList(wholePath.getAbsolutePath());
+      }
+      if (FileUtil.isAncestor(wholePath, loadRuleFile, false)) {
+        targets.add(loadRuleFile);
+      }
+    }
+
+    final List<String> result = new ArrayList<String>();
+    for (final File target : targets) {
+      if (!isUnderAnotherTarget(target, targets)) {
+        result.add(target.getAbsolutePath());
+      }
+    }
+    return result;
+  }
+
+  private static boolean isUnderAnotherTarget(@NotNull final File target, @NotNull final Set<File> targets) {
+    for (final File another : targets) {
+      if (FileUtil.isAncestor(another, target, true)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   protected InputStream listDirectoryContent(final String dirPath) throws ExecutionException, IOException, VcsException {
     return executeAndReturnProcessInput(new String[] { "ls", "-long", insertDots(dirPath, true) });
   }
 
   void loadFileContent(final File tempFile, final String line) throws ExecutionException, InterruptedException, IOException, VcsException {
+    loadFileContent(myProcess, getClearCaseViewPath(), tempFile, line);
+  }
+
+  /**
+   * Does not need a connection, so can be used for the versions which are known exactly without reading the config spec
+   */
+  static void loadFileContent(@NotNull final ClearCaseInteractiveProcess process,
+                              @NotNull final String clearCaseViewPath,
+                              @NotNull final File tempFile,
+                              @NotNull final String line) throws IOException, VcsException {
+    final FileContentStore store = FileContentStore.getInstance();
+    final String key = store != null ? getContentStoreKey(clearCaseViewPath, line) : null;
+    if (key != null) {
+      final File stored = store.get(key);
+      if (stored != null) {
+        try {
+          FileUtil.copy(stored, tempFile);
+          return;
+        }
+        catch (final IOException e) {
+          // the blob may be evicted right after it was found
+          LOG.debug("Failed to copy stored content of " + line + ", will use \"get\": " + e.getLocalizedMessage());
+          FileUtil.delete(tempFile); // "get -to" fails if the file exists
+        }
+      }
+    }
+
     final String destFileFqn = insertDots(tempFile.getAbsolutePath(), false);
     final String versionFqn = insertDots(line, false);
-    myProcess.copyFileContentTo(versionFqn, destFileFqn);
+    process.copyFileContentTo(versionFqn, destFileFqn);
+
+    if (key != null && tempFile.isFile()) {
+      store.put(key, tempFile);
+    }
+  }
+
+  /**
+   * @return the content from {@link FileContentStore} or null if it is not stored there
+   */
+  @Nullable
+  static byte[] getStoredContent(@NotNull final String clearCaseViewPath, @NotNull final String pathWithVersion) {
+    final FileContentStore store = FileContentStore.getInstance();
+    final String key = store == null ? null : getContentStoreKey(clearCaseViewPath, pathWithVersion);
+    if (key == null) return null;
+    final File stored = store.get(key);
+    if (stored == null) return null;
+    try {
+      return FileUtil.loadFileBytes(stored);
+    }
+    catch (final IOException e) {
+      LOG.debug("Failed to read stored content of " + pathWithVersion + ": " + e.getLocalizedMessage());
+      return null;
+    }
+  }
+
+  /**
+   * The content of a version does not depend on the view, so the key is the path within the view. The store is shared
+   * by all the views, so only a path having the versions of all its directories is a key: a name of a directory resolves
+   * to different elements in the views with different config specs, a path through the directory versions does not.
+   * @return null if the content of the path cannot be shared, see {@link FileContentStore#isCacheable(String)}
+   */
+  @Nullable
+  private static String getContentStoreKey(@NotNull final String clearCaseViewPath, @NotNull final String pathWithVersion) {
+    if (!FileContentStore.isCacheable(pathWithVersion)) return null;
+    final List<CCPathElement> elements = CCPathElement.splitIntoPathElements(pathWithVersion);
+    final List<CCPathElement> viewRoot = CCPathElement.splitIntoPathElements(clearCaseViewPath);
+    if (elements.size() <= viewRoot.size()) return null;
+    for (int i = 0; i < viewRoot.size(); i++) {
+      if (!viewRoot.get(i).getPathElement().equals(elements.get(i).getPathElement())) return null;
+    }
+    if (!CCPathElement.isVersionExtendedWithinVob(elements, viewRoot.size(), elements.size())) return null;
+    return CCPathElement.createPath(elements, viewRoot.size(), elements.size(), true);
   }
 
   public void collectChangesToIgnore(final Revision lastVersion) throws VcsException {
@@ -593,33 +912,39 @@ public class ClearCaseConnection {
   }
 
   protected void updateCurrentView() throws VcsException {
-    Semaphore semaphore;
-    final String viewPath = myViewPath.getClearCaseViewPath(); 
-    synchronized (viewName2Semaphore) {
-      semaphore = viewName2Semaphore.get(viewPath);
-      if (semaphore == null) {
-        semaphore = new Semaphore(1);
-        viewName2Semaphore.put(viewPath, semaphore);
-      }
-    }
+    SnapshotViewUpdater.getInstance(getClearCaseViewPath()).update(this);
+  }
+
+  /**
+   * @return true if the view is not a snapshot one
+   */
+  boolean doUpdateCurrentView() throws VcsException {
     try {
-      semaphore.acquire();
       //      final String log = writeLog ? UPDATE_LOG : (SystemInfo.isWindows ? "NUL" : "/dev/null");
       executeAndReturnProcessInput(new String[] { "update", "-force", "-rename", "-log", UPDATE_LOG /*log*/}).close();
+      return false;
     } catch (IOException e) {
       if (e.getLocalizedMessage().contains("is not a valid snapshot view path")) {
         //ignore, it is dynamic view
         LOG.debug("Please ignore the error above if you use dynamic view.");
+        return true;
       } else {
         throw new VcsException(e);
       }
-    } catch (InterruptedException e) {
-      throw new VcsException(e);
     } finally {
-      semaphore.release();
       FileUtil.delete(new File(getViewWholePath(), UPDATE_LOG));//TODO: ????????
     }
+  }
 
+  @Nullable
+  Long getLastEventId() throws VcsException {
+    try {
+      final HistoryElement lastChange = getLastChange();
+      return lastChange == null ? null : lastChange.getEventID();
+    }
+    catch (final IOException e) {
+      throw new VcsException(e);
+    }
   }
 
   protected boolean isViewIsDynamic() throws IOException {
@@ -673,6 +998,73 @@ public class ClearCaseConnection {
     return myViewPath.getClearCaseViewPath();
   }
 
+  /**
+   * Unlike {@link #isViewIsDynamic()} does not run cleartool, the value is known since the config spec reading
+   */
+  boolean isDynamicView() {
+    return myConfigSpec.isViewIsDynamic();
+  }
+
+  /**
+   * Lists the versions loaded into the snapshot view under the path of the connection by one "ls -recurse".
+   * The hijacked and checked out files are skipped since their content on disk may differ from the loaded version.
+   * @return versions (e.g. "/main/3") by the paths relative to the view path of the connection
+   */
+  @NotNull
+  Map<String, String> getLoadedVersions() throws VcsException {
+    final Map<String, String> result = new HashMap<String, String>();
+    final String viewWholePath = CCPathElement.normalizeSeparators(getViewWholePath());
+    try {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(executeAndReturnProcessInput(new String[] { "ls", "-recurse", viewWholePath })));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.contains("[hijacked]") || line.contains("CHECKEDOUT") || line.contains("[loaded but missing]")) continue;
+          final int sep = line.indexOf(CCParseUtil.CC_VERSION_SEPARATOR);
+          if (sep <= 0) continue; // view-private object
+          int end = sep + CCParseUtil.CC_VERSION_SEPARATOR.length();
+          while (end < line.length() && !Character.isWhitespace(line.charAt(end))) end++;
+
+          final String path = CCPathElement.normalizeSeparators(line.substring(0, sep).trim());
+          final String relPath;
+          if (path.startsWith(viewWholePath + File.separator)) {
+            relPath = path.substring(viewWholePath.length() + 1);
+          }
+          else if (new File(path).isAbsolute()) {
+            continue;
+          }
+          else {
+            relPath = path.startsWith("." + File.separator) ? path.substring(2) : path;
+          }
+          result.put(relPath, CCPathElement.normalizeSeparators(line.substring(sep + CCParseUtil.CC_VERSION_SEPARATOR.length(), end)));
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (final IOException e) {
+      throw new VcsException(e);
+    }
+    return result;
+  }
+
+  /**
+   * @return the file of {@link PatchContentIndex} for the path of this connection, null if there is no cache
+   */
+  @Nullable
+  File getPatchContentIndexFile() {
+    if (myCache == null) return null;
+    final File cacheDir = myCache.getCacheDir(myRoot, true);
+    if (cacheDir == null) return null;
+    return new File(new File(cacheDir, "patches"), String.valueOf(Hash.calc(getViewWholePath())));
+  }
+
+  @NotNull
+  ClearCaseInteractiveProcess getProcess() {
+    return myProcess;
+  }
+
   public static InputStream getConfigSpecInputStream(@NotNull final ClearCaseInteractiveProcess process) throws IOException {
     try {
       return process.executeAndReturnProcessInput(new String[] { "catcs" });
@@ -712,7 +1104,7 @@ public class ClearCaseConnection {
     if (dateRevision == null) return;
 
     if (useCache && myCache != null) {
-      final CacheElement cache = myCache.getCache(dateRevision, getViewWholePath(), IncludeRule.createDefaultInstance(), myRoot);
+      final CacheElement cache = myCache.getCache(dateRevision, this, myRoot);
       if (cache == null) {
         processAllVersions(version, versionProcessor, processRoot, false);
       }
@@ -748,6 +1140,14 @@ public class ClearCaseConnection {
   private void processAllVersionsInternal(final String dirPath, final VersionProcessor versionProcessor, String relativePath) throws VcsException {
     final List<DirectoryChildElement> subfiles = CCParseUtil.readDirectoryVersionContent(this, dirPath);
 
+    final List<String> files = new ArrayList<String>();
+    for (DirectoryChildElement subfile : subfiles) {
+      if (subfile.getType() == DirectoryChildElement.Type.FILE) {
+        files.add(subfile.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
+      }
+    }
+    preloadFileAttrs(files);
+
     for (DirectoryChildElement subfile : subfiles) {
       final String fileFullPath = CCPathElement.removeUnneededDots(subfile.getFullPath());
       String newRelPath = "./".equals(relativePath) ? CCParseUtil.getFileName(subfile.getPath()) : relativePath + File.separator + CCParseUtil.getFileName(subfile.getPath());
@@ -756,9 +1156,16 @@ public class ClearCaseConnection {
         final ClearCaseFileAttr fileAttr = loadFileAttr(subfile.getPathWithoutVersion() + CCParseUtil.CC_VERSION_SEPARATOR);
         versionProcessor.processFile(fileFullPath, newRelPath, elemPath, subfile.getStringVersion(), this, fileAttr.isIsText(), fileAttr.isIsExecutable());
       } else {
+        final SubtreeVersionProcessor subtreeProcessor = versionProcessor instanceof SubtreeVersionProcessor ? (SubtreeVersionProcessor)versionProcessor : null;
+        if (subtreeProcessor != null && subtreeProcessor.processSubtree(fileFullPath, newRelPath, elemPath, subfile.getStringVersion())) {
+          continue;
+        }
         versionProcessor.processDirectory(fileFullPath, newRelPath, elemPath, subfile.getStringVersion(), this);
         try {
           processAllVersionsInternal(fileFullPath, versionProcessor, newRelPath);
+          if (subtreeProcessor != null) {
+            subtreeProcessor.subtreeCompleted(newRelPath);
+          }
         } finally {
           versionProcessor.finishProcessingDirectory();
         }
@@ -798,24 +1205,64 @@ public class ClearCaseConnection {
   }
 
   protected void mklabel(final String version, final String pname, final String label, final boolean isDirPath) throws VcsException, IOException {
+    mklabel(version, Collections.singletonList(insertDots(pname, isDirPath)), label);
+  }
+
+  /**
+   * Attaches the label to the given version of all the elements in one "mklabel" invocation.
+   * The element names must already be prepared by {@link #insertDots(String, boolean)}.
+   * The failure is ignored if every error reported by cleartool says the label is already on the element.
+   */
+  void mklabel(@NotNull final String version, @NotNull final List<String> pnames, @NotNull final String label) throws VcsException, IOException {
+    if (pnames.isEmpty()) return;
+    final List<String> params = new ArrayList<String>(pnames.size() + 5);
+    params.add("mklabel");
+    params.add("-replace");
+    params.add("-version");
+    params.add(version);
+    params.add(label);
+    params.addAll(pnames);
     try {
-      InputStream inputStream = executeAndReturnProcessInput(new String[] { "mklabel", "-replace", "-version", version, label, insertDots(pname, isDirPath) });
+      InputStream inputStream = executeAndReturnProcessInput(ClearCaseSupport.makeArray(params));
       try {
         inputStream.close();
       } catch (IOException e) {
         //ignore
       }
     } catch (IOException e) {
-      if (!e.getLocalizedMessage().contains("already on element"))
+      if (!isAlreadyOnElementError(e))
         throw e;
     }
   }
 
+  private static boolean isAlreadyOnElementError(@NotNull final IOException e) {
+    final String message = e.getLocalizedMessage();
+    if (message == null) return false;
+    final int paramsEnd = message.indexOf("]: ");
+    final String errors = paramsEnd < 0 ? message : message.substring(paramsEnd + 3);
+    boolean found = false;
+    for (final String line : errors.split("\\r?\\n")) {
+      if (!line.contains("Error")) continue;
+      if (!line.contains("already on element")) return false;
+      found = true;
+    }
+    return found;
+  }
+
   public ClearCaseFileAttr loadFileAttr(final String path) throws VcsException {
+    final String key = getFileAttrKey(path);
+    final FileAttributeCache cache = FileAttributeCache.getInstance();
+    final ClearCaseFileAttr cached = key == null ? null : cache.get(key);
+    if (cached != null) return cached;
+
     try {
       final InputStream input = executeAndReturnProcessInput(new String[] { "describe", insertDots(cutOffVersion(path), false) });
       try {
-        return ClearCaseFileAttr.readFrom(input);
+        final ClearCaseFileAttr attr = ClearCaseFileAttr.readFrom(input);
+        if (key != null) {
+          cache.put(key, attr);
+        }
+        return attr;
       } finally {
         try {
           input.close();
@@ -828,6 +1275,87 @@ public class ClearCaseConnection {
     }
   }
 
+  /**
+   * Puts the attributes of the elements which are not cached yet into {@link FileAttributeCache} describing them in batches,
+   * so the following {@link #loadFileAttr(String)} calls do not run cleartool
+   */
+  void preloadFileAttrs(@NotNull final List<String> paths) throws VcsException {
+    final FileAttributeCache cache = FileAttributeCache.getInstance();
+    final List<String> missing = new ArrayList<String>();
+    final List<String> keys = new ArrayList<String>();
+    for (final String path : paths) {
+      final String key = getFileAttrKey(path);
+      if (key != null && cache.get(key) == null) {
+        missing.add(path);
+        keys.add(key);
+      }
+    }
+    if (missing.size() < 2) return;
+
+    final int batchSize = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_DESCRIBE_BATCH_SIZE, 50));
+    for (int from = 0; from < missing.size(); from += batchSize) {
+      final List<String> batch = missing.subList(from, Math.min(from + batchSize, missing.size()));
+      final List<String> batchKeys = keys.subList(from, Math.min(from + batchSize, keys.size()));
+      final List<String> params = new ArrayList<String>();
+      params.add("describe");
+      for (final String path : batch) {
+        params.add(insertDots(cutOffVersion(path), false));
+      }
+      try {
+        final InputStream input = executeAndReturnProcessInput(ClearCaseSupport.makeArray(params));
+        final List<ClearCaseFileAttr> attrs;
+        try {
+          attrs = ClearCaseFileAttr.readAllFrom(input);
+        }
+        finally {
+          input.close();
+        }
+        if (attrs.size() != batch.size()) {
+          LOG.debug("Unexpected \"describe\" output: " + attrs.size() + " description(s) for " + batch.size() + " element(s), they will be described one by one");
+          continue;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          cache.put(batchKeys.get(i), attrs.get(i));
+        }
+      }
+      catch (final IOException e) {
+        LOG.debug("Failed to describe " + batch.size() + " element(s) at once, they will be described one by one: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * The attributes belong to the element and the cache is shared by all the views, so the key must identify the element
+   * whatever the config spec selects: it is the path relative to the view root through the versions of the parent directories,
+   * with the version of the element itself removed, e.g. "vob@@/main/5/dir@@/main/2/foo.c" for the path of the walk
+   * "vob@@/main/5/dir@@/main/2/foo.c@@/main/7". A name resolves to another element in another view (evil twins on
+   * different branches) or after "rmname" and "mkelem", while a directory version never changes its content.
+   * @return null if the path has a parent directory without the version within the VOB, such a path is not cached
+   */
+  @Nullable
+  String getFileAttrKey(@NotNull final String path) {
+    final List<CCPathElement> elements = CCPathElement.splitIntoPathElements(path);
+    final List<CCPathElement> viewRoot = CCPathElement.splitIntoPathElements(getClearCaseViewPath());
+    if (elements.size() <= viewRoot.size()) return null;
+    for (int i = 0; i < viewRoot.size(); i++) {
+      if (!viewRoot.get(i).getPathElement().equals(elements.get(i).getPathElement())) return null;
+    }
+    if (!CCPathElement.isVersionExtendedWithinVob(elements, viewRoot.size(), elements.size() - 1)) return null;
+    return CCPathElement.createPath(elements, viewRoot.size(), elements.size() - 1, true) + File.separator +
+           elements.get(elements.size() - 1).getPathElement();
+  }
+
+  /**
+   * @return the element path relative to the view root without any versions, the attributes of all the elements
+   * of this name are invalidated by the attribute change events, see {@link FileAttributeCache#invalidateElement(String)}
+   */
+  @NotNull
+  String getElementName(@NotNull final String path) {
+    final String elementPath = extractElementPath(path);
+    final String viewRoot = extractElementPath(getClearCaseViewPath()) + File.separator;
+    return elementPath.startsWith(viewRoot) ? elementPath.substring(viewRoot.length()) : elementPath;
+  }
+
   private String cutOffVersion(final String path) {
     final int versionSep = path.lastIndexOf(CCParseUtil.CC_VERSION_SEPARATOR);
     if (versionSep != -1) {
@@ -965,7 +1493,13 @@ public class ClearCaseConnection {
   @NotNull
   public List<SimpleDirectoryChildElement> getChildren(@NotNull final String dirPathWithVersion) throws VcsException {
     if (!myDirectoryContentCache.containsKey(dirPathWithVersion)) {
-      myDirectoryContentCache.put(dirPathWithVersion, doGetChildren(dirPathWithVersion));
+      final DirectoryListingCache listingCache = DirectoryListingCache.getInstance();
+      List<SimpleDirectoryChildElement> children = listingCache.get(dirPathWithVersion);
+      if (children == null) {
+        children = doGetChildren(dirPathWithVersion);
+        listingCache.put(dirPathWithVersion, children);
+      }
+      myDirectoryContentCache.put(dirPathWithVersion, children);
     }
     return myDirectoryContentCache.get(dirPathWithVersion);
   }
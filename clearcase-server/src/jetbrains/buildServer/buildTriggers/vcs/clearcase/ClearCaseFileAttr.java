@@ -20,6 +20,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ClearCaseFileAttr {
   private final boolean myIsExecutable;
@@ -44,10 +46,43 @@ public class ClearCaseFileAttr {
 
   public static ClearCaseFileAttr readFrom(final InputStream input) throws IOException {
     final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    final List<String> lines = new ArrayList<String>();
     String line;
+    while ((line  = reader.readLine() ) != null) {
+      lines.add(line);
+    }
+    return readFrom(lines);
+  }
+
+  /**
+   * Reads the output of "describe" for several elements, the description of every element starts with a non-indented line
+   */
+  public static List<ClearCaseFileAttr> readAllFrom(final InputStream input) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    final List<ClearCaseFileAttr> result = new ArrayList<ClearCaseFileAttr>();
+    List<String> lines = null;
+    String line;
+    while ((line  = reader.readLine() ) != null) {
+      if (line.length() > 0 && !Character.isWhitespace(line.charAt(0))) {
+        if (lines != null) {
+          result.add(readFrom(lines));
+        }
+        lines = new ArrayList<String>();
+      }
+      if (lines != null) {
+        lines.add(line);
+      }
+    }
+    if (lines != null) {
+      result.add(readFrom(lines));
+    }
+    return result;
+  }
+
+  private static ClearCaseFileAttr readFrom(final List<String> lines) {
     String fileType = null;
     boolean executable = false;
-    while ((line  = reader.readLine() ) != null) {
+    for (final String line : lines) {
       if (line.startsWith(ELEMENT_TYPE)) {
         fileType = line.substring(ELEMENT_TYPE.length());
       }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Attaches the label to the processed versions. The elements are collected by their version selector
+ * and labeled by one "mklabel" invocation per batch, the rest is labeled by {@link #flush()}.
+ * One labeler must be used with one connection only.
+ */
+class ClearCaseLabeler implements VersionProcessor {
+  @NotNull private final String myLabel;
+  @NotNull private final ClearCaseConnection myConnection;
+  @NotNull private final Map<String, List<String>> myPending = new LinkedHashMap<String, List<String>>();
+  private final int myBatchSize;
+
+  ClearCaseLabeler(@NotNull final String label, @NotNull final ClearCaseConnection connection) {
+    myLabel = label;
+    myConnection = connection;
+    myBatchSize = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_MKLABEL_BATCH_SIZE, 100));
+  }
+
+  public void processFile(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) throws VcsException {
+    add(version, ClearCaseConnection.insertDots(fileFullPath, false));
+  }
+
+  public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection) throws VcsException {
+    add(version, ClearCaseConnection.insertDots(fileFullPath, true));
+  }
+
+  public void finishProcessingDirectory() {
+  }
+
+  public void flush() throws VcsException {
+    for (final Map.Entry<String, List<String>> entry : myPending.entrySet()) {
+      mklabel(entry.getKey(), entry.getValue());
+    }
+    myPending.clear();
+  }
+
+  private void add(@NotNull final String version, @NotNull final String pname) throws VcsException {
+    List<String> pnames = myPending.get(version);
+    if (pnames == null) {
+      pnames = new ArrayList<String>();
+      myPending.put(version, pnames);
+    }
+    pnames.add(pname);
+    if (pnames.size() >= myBatchSize) {
+      myPending.remove(version);
+      mklabel(version, pnames);
+    }
+  }
+
+  private void mklabel(@NotNull final String version, @NotNull final List<String> pnames) throws VcsException {
+    try {
+      myConnection.mklabel(version, pnames, myLabel);
+    }
+    catch (final IOException e) {
+      throw new VcsException(e);
+    }
+  }
+}
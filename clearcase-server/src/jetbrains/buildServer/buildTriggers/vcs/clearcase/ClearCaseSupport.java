@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import jetbrains.buildServer.Used;
@@ -35,10 +36,12 @@ import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecLo
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpecParseUtil;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.CacheElement;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.ClearCaseStructureCache;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.versionTree.Version;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.util.*;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import jetbrains.buildServer.util.filters.Filter;
 import jetbrains.buildServer.util.filters.FilterUtil;
 import jetbrains.buildServer.vcs.*;
@@ -66,6 +69,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   private static final Pattern COLON_OR_SEMICOLON_PATTERN = Pattern.compile("[;:]");
 
   private @Nullable ClearCaseStructureCache myCache;
+  private final @NotNull Set<LabelingProgress> myLabelingProgress = Collections.synchronizedSet(new LinkedHashSet<LabelingProgress>());
 
   private static ClearCaseSupport ourDefault;
 
@@ -88,6 +92,20 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   @Autowired
   public ClearCaseSupport(final @NotNull SBuildServer server, final @NotNull ServerPaths serverPaths, final @NotNull EventDispatcher<BuildServerListener> dispatcher) {
     this();
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        ClearCaseInteractiveProcessPool.destroyIdleProcesses();
+      }
+    });
+    final File directoriesCacheDir = new File(new File(serverPaths.getCachesDir()), "clearCaseDirectories");
+    if (USE_CC_CACHE && (directoriesCacheDir.isDirectory() || directoriesCacheDir.mkdirs())) {
+      DirectoryListingCache.init(new File(directoriesCacheDir, "listings.bin"));
+      FileAttributeCache.init(new File(directoriesCacheDir, "attributes.bin"));
+    }
+    if (USE_CC_CACHE) {
+      FileContentStore.init(new File(new File(serverPaths.getCachesDir()), "clearCaseContents"));
+    }
     File cachesRootDir = new File(new File(serverPaths.getCachesDir()), "clearCase");
     if (!cachesRootDir.exists() && !cachesRootDir.mkdirs()) {
       myCache = null;
@@ -112,7 +130,11 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   @NotNull
   public static ViewPath getRootPath(@NotNull final VcsRoot vcsRoot) throws VcsException, IOException {
-    final ViewPath viewPath = getViewPath(vcsRoot);
+    return getRootPath(getViewPath(vcsRoot));
+  }
+
+  @NotNull
+  public static ViewPath getRootPath(@NotNull final ViewPath viewPath) throws VcsException {
     final String vobRelativePath;
     final String relativePath = viewPath.getRelativePathWithinTheView();
     int pos = relativePath.indexOf(File.separatorChar);
@@ -178,9 +200,36 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   }
 
   public void doWithConnection(final ViewPath viewPath, final VcsRoot root, final boolean checkCSChange, final ConnectionProcessor processor) throws IOException, VcsException {
+    doWithConnection(viewPath, root, checkCSChange, true, processor);
+  }
+
+  /**
+   * Same as {@link #withConnection(VcsRoot, FileRule, ConfigSpecLoadRule, ConnectionProcessor)} but does not update the snapshot view,
+   * for the operations addressing the versions explicitly.
+   */
+  private void withReadOnlyConnection(final VcsRoot root, @NotNull final ConnectionProcessor processor) throws VcsException, IOException {
+    doWithConnection(getViewPath(root), root, false, false, processor);
+  }
+
+  /**
+   * Read-only connection for the view path of the include rule, see {@link #withReadOnlyConnection(VcsRoot, ConnectionProcessor)}
+   */
+  public void withReadOnlyConnection(final VcsRoot root, final FileRule includeRule, @NotNull final ConnectionProcessor processor) throws VcsException, IOException {
+    final ViewPath viewPath = getViewPath(root);
+    if (includeRule.getFrom().length() > 0) {
+      viewPath.setIncludeRuleFrom(includeRule);
+    }
+    doWithConnection(viewPath, root, false, false, processor);
+  }
+
+  private void doWithConnection(final ViewPath viewPath,
+                                final VcsRoot root,
+                                final boolean checkCSChange,
+                                final boolean updateView,
+                                final ConnectionProcessor processor) throws IOException, VcsException {
     ClearCaseInteractiveProcessPool.doWithProcess(viewPath, new ClearCaseInteractiveProcessPool.ProcessRunnable() {
       public void run(@NotNull final ClearCaseInteractiveProcess process) throws IOException, VcsException {
-        processor.process(new ClearCaseConnection(viewPath, process, myCache, root, checkCSChange));
+        processor.process(new ClearCaseConnection(viewPath, process, myCache, root, checkCSChange, updateView));
       }
     });
   }
@@ -322,20 +371,43 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   private void buildPatchForConnection(PatchBuilder builder, Revision fromVersion, Revision toVersion, ClearCaseConnection connection) throws IOException, VcsException {
     try {
-      final boolean useCache = USE_CC_CACHE && !connection.getConfigSpec().hasLabelBasedVersionSelector();
-      new CCPatchProvider(connection, useCache).buildPatch(builder, fromVersion, toVersion);
+      new CCPatchProvider(connection, isStructureCacheUsed(connection)).buildPatch(builder, fromVersion, toVersion);
     }
     catch (final ExecutionException e) {
       throw new VcsException(e);
     }
   }
   
+  /**
+   * The structure cache follows the label events, see {@link jetbrains.buildServer.buildTriggers.vcs.clearcase.structure.CacheElement}
+   */
+  public static boolean isStructureCacheUsed(@NotNull final ClearCaseConnection connection) {
+    return USE_CC_CACHE && (TeamCityProperties.getBooleanOrTrue(Constants.TEAMCITY_PROPERTY_STRUCTURE_CACHE_LABEL_BASED) ||
+                            !connection.getConfigSpec().hasLabelBasedVersionSelector());
+  }
+
   private static byte[] getFileContent(final ClearCaseConnection connection, final String filePath) throws VcsException {
+    return getFileContent(connection.getProcess(), connection.getClearCaseViewPath(), filePath);
+  }
+
+  /**
+   * Reads the version-extended path directly if it is visible in the file system (dynamic view), otherwise uses "get"
+   */
+  private static byte[] getFileContent(@NotNull final ClearCaseInteractiveProcess process, @NotNull final String clearCaseViewPath, @NotNull final String filePath) throws VcsException {
+    final File versionFile = DynamicViewContentReader.getVersionFile(filePath);
+    if (versionFile != null) {
+      try {
+        return DynamicViewContentReader.readContent(versionFile);
+      }
+      catch (final IOException e) {
+        LOG.debug("Cannot read \"" + filePath + "\" directly, will use \"get\": " + e.getLocalizedMessage());
+      }
+    }
     try {
       final File tempFile = FileUtil.createTempFile("cc", "tmp");
       FileUtil.delete(tempFile);
       try {
-        connection.loadFileContent(tempFile, filePath);
+        ClearCaseConnection.loadFileContent(process, clearCaseViewPath, tempFile, filePath);
         if (tempFile.isFile()) {
           return FileUtil.loadFileBytes(tempFile);
         } else {
@@ -344,37 +416,40 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
       } finally {
         FileUtil.delete(tempFile);
       }
-    } catch (ExecutionException e) {
-      throw new VcsException(e);
-    } catch (InterruptedException e) {
-      throw new VcsException(e);
     } catch (IOException e) {
       throw new VcsException(e);
     }
   }
 
+  /**
+   * The versions of the change are known exactly, so neither the config spec nor the view state are needed here:
+   * the content is taken from {@link FileContentStore} or loaded by an idle cleartool process of the view,
+   * see {@link ClearCaseInteractiveProcessPool#doWithPooledProcess}.
+   */
   @NotNull
   public byte[] getContent(@NotNull final VcsModification vcsModification, @NotNull final VcsChangeInfo change, @NotNull final VcsChangeInfo.ContentType contentType, @NotNull final VcsRoot vcsRoot) throws VcsException {
-    final Ref<byte[]> result = new Ref<byte[]>();
     try {
-      withConnection(vcsRoot, IncludeRule.createDefaultInstance(), null, new ConnectionProcessor() {
-        public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
-          final String filePath = new File(connection.getViewWholePath()).getParent() + File.separator + (contentType == VcsChangeInfo.ContentType.BEFORE_CHANGE ? change.getBeforeChangeRevisionNumber() : change.getAfterChangeRevisionNumber());
-          result.set(getFileContent(connection, filePath));
+      final ViewPath viewPath = getViewPath(vcsRoot);
+      final String filePath = new File(viewPath.getWholePath()).getParent() + File.separator + (contentType == VcsChangeInfo.ContentType.BEFORE_CHANGE ? change.getBeforeChangeRevisionNumber() : change.getAfterChangeRevisionNumber());
+      final byte[] stored = ClearCaseConnection.getStoredContent(viewPath.getClearCaseViewPath(), filePath);
+      if (stored != null) return stored;
+
+      return ClearCaseInteractiveProcessPool.doWithPooledProcess(viewPath.getWholePath(), new ClearCaseInteractiveProcessPool.ProcessComputable<byte[]>() {
+        public byte[] compute(@NotNull final ClearCaseInteractiveProcess process) throws VcsException {
+          return getFileContent(process, viewPath.getClearCaseViewPath(), filePath);
         }
       });
     }
     catch (IOException e) {
       throw new VcsException(e);
     }
-    return result.get();
   }
 
   @NotNull
   public byte[] getContent(@NotNull final String filePath, @NotNull final VcsRoot versionedRoot, @NotNull final String version) throws VcsException {
     final Ref<byte[]> result = new Ref<byte[]>();
     try {
-      withConnection(versionedRoot, IncludeRule.createDefaultInstance(), null, new ConnectionProcessor() {
+      withReadOnlyConnection(versionedRoot, new ConnectionProcessor() {
         public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
           final String preparedPath = CCPathElement.normalizeSeparators(filePath);
           try {
@@ -665,10 +740,18 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   }
 
   public List<ModificationData> collectChanges(final VcsRoot root, final Revision fromVersion, final Revision currentVersion, final IncludeRule includeRule) throws VcsException {
+    return collectChanges(null, root, fromVersion, currentVersion, includeRule);
+  }
+
+  private List<ModificationData> collectChanges(@Nullable final ClearCaseCollectionSession session,
+                                                final VcsRoot root,
+                                                final Revision fromVersion,
+                                                final Revision currentVersion,
+                                                final IncludeRule includeRule) throws VcsException {
     LOG.debug(String.format("Attempt connect to '%s'", root.describe(true)));
     final Ref<List<ModificationData>> result = new Ref<List<ModificationData>>();
     try {
-      withConnection(root, includeRule, null, new ConnectionProcessor() {
+      final ConnectionProcessor processor = new ConnectionProcessor() {
         public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
           try {
             result.set(collectChangesWithConnection(root, fromVersion, currentVersion, connection));
@@ -678,14 +761,37 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
             throw e;
           }
         }
-      });
+      };
+      if (session == null) {
+        withConnection(root, includeRule, null, processor);
+      }
+      else {
+        session.withConnection(includeRule, processor);
+      }
     }
     catch (IOException e) {
       throw new VcsException(e);
     }
+    warmUpStructureCache(root, includeRule, result.get());
     return result.get();
   }
 
+  /**
+   * The latest detected revision is likely to be built soon, its structure snapshot is prepared in background
+   */
+  private void warmUpStructureCache(@NotNull final VcsRoot root, @NotNull final IncludeRule includeRule, @Nullable final List<ModificationData> changes) {
+    if (!USE_CC_CACHE || myCache == null || changes == null || changes.isEmpty()) return;
+    try {
+      final DateRevision version = Revision.fromNotNullString(changes.get(changes.size() - 1).getVersion()).getDateRevision();
+      if (version != null) {
+        myCache.warmUp(version, root, includeRule);
+      }
+    }
+    catch (final ParseException e) {
+      LOG.debug("Cannot warm up ClearCase structure cache: " + e.getMessage());
+    }
+  }
+
   private List<ModificationData> collectChangesWithConnection(VcsRoot root, Revision fromVersion, Revision currentVersion, ClearCaseConnection connection) throws VcsException {
     try {
       final ArrayList<ModificationData> list = new ArrayList<ModificationData>();
@@ -697,7 +803,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
       try {
         LOG.debug("Collecting changes...");
-        CCParseUtil.processChangedFiles(connection, fromVersion, currentVersion, fileProcessor);
+        CCParseUtil.processChangedFiles(connection, fromVersion, currentVersion, fileProcessor, true);
 
         for (CCModificationKey key : key2changes.keySet()) {
           final List<VcsChange> changes = key2changes.get(key);
@@ -735,18 +841,33 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
 
   @NotNull
   public String label(@NotNull final String label, @NotNull final String version, @NotNull final VcsRoot root, @NotNull final CheckoutRules checkoutRules) throws VcsException {
+    final LabelingProgress progress = new LabelingProgress(label, version, myCache == null ? null : myCache.getLabelJournalFile(root, label, version));
+    myLabelingProgress.add(progress);
     try {
       final Revision revision = Revision.fromNotNullString(version);
 
       createLabel(label, root);
 
-      final VersionProcessor labeler = getClearCaseLabeler(label);
-      final ConnectionProcessor childrenProcessor = getChildrenProcessor(revision, labeler);
+      final ClearCaseCollectionSession session = ClearCaseCollectionSession.open(root, myCache, false);
+      final List<IncludeRule> includeRules = checkoutRules.getRootIncludeRules();
+
+      final int parallelism = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_LABELING_PARALLELISM, 4));
+      final ExecutorService executor = ExecutorsFactory.newFixedExecutor("ClearCase labeling", parallelism);
+      final ClearCaseCollectionSession.WorkerConnections connections = session.createWorkerConnections();
+      try {
+        session.processIncludeRules(includeRules, getChildrenProcessor(revision, label, session, executor, connections, parallelism, progress));
+      }
+      finally {
+        executor.shutdownNow();
+        connections.close();
+      }
 
-      for (IncludeRule includeRule : checkoutRules.getRootIncludeRules()) {
-        withConnection(root, includeRule, null, childrenProcessor);
-        withRootConnection(root, getParentsProcessor(revision, labeler, createPath(root, includeRule)));
+      final List<String> paths = new ArrayList<String>();
+      for (IncludeRule includeRule : includeRules) {
+        paths.add(createPath(session.getViewPath(), includeRule));
       }
+      session.withConnection(getRootPath(session.getViewPath()), getParentsProcessor(revision, label, paths));
+      progress.finished();
       return label;
     }
     catch (ParseException e) {
@@ -755,59 +876,81 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
     catch (IOException e) {
       throw new VcsException(e);
     }
+    finally {
+      myLabelingProgress.remove(progress);
+    }
   }
 
-  private String createPath(@NotNull final VcsRoot root, @NotNull final IncludeRule includeRule) throws VcsException {
-    try {
-      final ViewPath viewPath = getViewPath(root);
-      viewPath.setIncludeRuleFrom(includeRule);
-      return viewPath.getWholePath();
-    }
-    catch (IOException e) {
-      throw new VcsException(e);
+  /**
+   * @return the progress of the labels being attached at the moment
+   */
+  @NotNull
+  public List<LabelingProgress> getLabelingProgress() {
+    synchronized (myLabelingProgress) {
+      return new ArrayList<LabelingProgress>(myLabelingProgress);
     }
   }
 
-  private ConnectionProcessor getParentsProcessor(final Revision version, final VersionProcessor labeler, final String path) {
-    return new ConnectionProcessor() {
-      public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
-        connection.processAllParents(version, labeler, path);
-      }
-    };
+  private String createPath(@NotNull final ViewPath rootViewPath, @NotNull final IncludeRule includeRule) throws VcsException {
+    final ViewPath viewPath = new ViewPath(rootViewPath.getClearCaseViewPath(), rootViewPath.getRelativePathWithinTheView());
+    viewPath.setIncludeRuleFrom(includeRule);
+    return viewPath.getWholePath();
   }
 
-  private ConnectionProcessor getChildrenProcessor(final Revision version, final VersionProcessor labeler) {
+  /**
+   * The include rules usually share their parent directories, every parent is labeled once after all the include rules
+   */
+  private ConnectionProcessor getParentsProcessor(final Revision version, final String label, final List<String> paths) {
     return new ConnectionProcessor() {
       public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
-        connection.processAllVersions(version, labeler, true, true);
-      }
-    };
-  }
+        final ClearCaseLabeler labeler = new ClearCaseLabeler(label, connection);
+        final Set<String> labeled = new HashSet<String>();
+        final VersionProcessor parentsLabeler = new VersionProcessor() {
+          public void processFile(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) throws VcsException {
+            if (labeled.add(fileFullPath)) {
+              labeler.processFile(fileFullPath, relPath, pname, version, clearCaseConnection, text, executable);
+            }
+          }
 
-  private void withRootConnection(@NotNull final VcsRoot root, @NotNull final ConnectionProcessor processor) throws VcsException, IOException {
-    doWithConnection(getRootPath(root), root, false, processor);
-  }
+          public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection) throws VcsException {
+            if (labeled.add(fileFullPath)) {
+              labeler.processDirectory(fileFullPath, relPath, pname, version, clearCaseConnection);
+            }
+          }
 
-  private VersionProcessor getClearCaseLabeler(@NotNull final String label) {
-    return new VersionProcessor() {
-      public void processFile(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) throws VcsException {
-        try {
-          clearCaseConnection.mklabel(version, fileFullPath, label, false);
-        } catch (IOException e) {
-          throw new VcsException(e);
+          public void finishProcessingDirectory() {
+          }
+        };
+        for (final String path : paths) {
+          connection.processAllParents(version, parentsLabeler, path);
         }
+        labeler.flush();
       }
+    };
+  }
 
-      public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection) throws VcsException {
-        try {
-          clearCaseConnection.mklabel(version, fileFullPath, label, true);
-        } catch (IOException e) {
-          throw new VcsException(e);
+  private ConnectionProcessor getChildrenProcessor(final Revision version,
+                                                   final String label,
+                                                   final ClearCaseCollectionSession session,
+                                                   final ExecutorService executor,
+                                                   final ClearCaseCollectionSession.WorkerConnections connections,
+                                                   final int parallelism,
+                                                   final LabelingProgress progress) {
+    return new ConnectionProcessor() {
+      public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
+        final DateRevision dateRevision = version.getDateRevision();
+        long estimatedCount = 0;
+        if (myCache != null && dateRevision != null && isStructureCacheUsed(connection)) {
+          final CacheElement cache = myCache.getCache(dateRevision, connection, session.getRoot());
+          if (cache != null) {
+            estimatedCount = cache.estimateElementCount();
+            progress.addEstimatedTotal(estimatedCount);
+          }
         }
-      }
-
-      public void finishProcessingDirectory() {
-
+        final ParallelLabeler labeler =
+          new ParallelLabeler(label, connections, executor, parallelism, progress, connection.getViewWholePath(), estimatedCount);
+        connection.processAllVersions(version, labeler, true, true);
+        labeler.finish();
       }
     };
   }
@@ -944,17 +1087,34 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   @NotNull
   public IncludeRuleChangeCollector getChangeCollector(@NotNull final VcsRoot root, @NotNull final String fromVersion, @Nullable final String currentVersion) throws VcsException {
     return new IncludeRuleChangeCollector() {
+      private ClearCaseCollectionSession mySession;
+
       @NotNull
       public List<ModificationData> collectChanges(@NotNull final IncludeRule includeRule) throws VcsException {
         try {
-          return ClearCaseSupport.this.collectChanges(root, Revision.fromNotNullString(fromVersion), Revision.fromString(currentVersion), includeRule);
+          return ClearCaseSupport.this.collectChanges(getSession(), root, Revision.fromNotNullString(fromVersion), Revision.fromString(currentVersion), includeRule);
         }
         catch (final ParseException e) {
           throw new VcsException(e);
         }
       }
 
-      public void dispose() {}
+      @NotNull
+      private synchronized ClearCaseCollectionSession getSession() throws VcsException {
+        if (mySession == null) {
+          try {
+            mySession = ClearCaseCollectionSession.open(root, myCache, false);
+          }
+          catch (final IOException e) {
+            throw new VcsException(e);
+          }
+        }
+        return mySession;
+      }
+
+      public synchronized void dispose() {
+        mySession = null;
+      }
     };
   }
 
@@ -988,7 +1148,7 @@ public class ClearCaseSupport extends ServerVcsSupport implements VcsPersonalSup
   public Collection<VcsFileData> listFiles(@NotNull final VcsRoot root, @NotNull final String directoryPath) throws VcsException {
     final Ref<Collection<VcsFileData>> result = new Ref<Collection<VcsFileData>>();
     try {
-      withConnection(root, IncludeRule.createDefaultInstance(), null, new ConnectionProcessor() {
+      withReadOnlyConnection(root, new ConnectionProcessor() {
         public void process(@NotNull final ClearCaseConnection connection) throws VcsException, IOException {
           final String dirFullPath = new File(getViewPath(root).getWholePath(), directoryPath).getAbsolutePath();
           final Version dirVersion = connection.getLastVersion(dirFullPath, false);
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.TCStreamUtil;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Server-wide LRU cache of the directory listings for the fixed directory versions (e.g. "dir@@/main/7").
+ * Such a listing never changes, so it can be shared between all connections and kept across server restarts.
+ * The listings are stored as the child names relative to the directory, the full paths are restored on reading.
+ * If a file is specified, every new listing is appended to it and the file is rewritten from memory when it grows too much.
+ */
+public class DirectoryListingCache {
+  private static final int FORMAT_VERSION = 1;
+  private static final byte FILE_TYPE = 0;
+  private static final byte DIRECTORY_TYPE = 1;
+  private static final byte FULL_PATH_FLAG = 2;
+
+  private static final Pattern FIXED_VERSION_PATTERN = Pattern.compile(".*" + Pattern.quote(CCParseUtil.CC_VERSION_SEPARATOR) + ".*[/\\\\]\\d+");
+
+  private static volatile DirectoryListingCache ourInstance = new DirectoryListingCache(null);
+
+  private final int myMaxSize;
+  private final LinkedHashMap<String, String[]> myListings;
+  @Nullable private final CacheJournal<String[]> myJournal;
+
+  DirectoryListingCache(@Nullable final File file) {
+    myMaxSize = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_DIRECTORY_LISTING_CACHE_SIZE, 20000));
+    myListings = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, String[]> eldest) {
+        return size() > myMaxSize;
+      }
+    };
+    myJournal = file == null ? null : new CacheJournal<String[]>(file, FORMAT_VERSION, "directory listing cache") {
+      @NotNull
+      @Override
+      protected String[] readValue(@NotNull final DataInputStream input) throws IOException {
+        final String[] encoded = new String[input.readInt()];
+        for (int i = 0; i < encoded.length; i++) {
+          encoded[i] = TCStreamUtil.readString(input);
+        }
+        return encoded;
+      }
+
+      @Override
+      protected void writeValue(@NotNull final DataOutputStream output, @Nullable final String[] encoded) throws IOException {
+        if (encoded == null) throw new IOException("Directory listings are never removed");
+        output.writeInt(encoded.length);
+        for (final String child : encoded) {
+          TCStreamUtil.writeString(output, child);
+        }
+      }
+    };
+    if (myJournal != null) {
+      myJournal.load(myListings);
+    }
+  }
+
+  @NotNull
+  public static DirectoryListingCache getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * Makes the cache persistent, called once on the server start
+   */
+  public static void init(@NotNull final File file) {
+    if (!TeamCityProperties.getBooleanOrTrue(Constants.TEAMCITY_PROPERTY_DIRECTORY_LISTING_CACHE_PERSISTENT)) return;
+    final DirectoryListingCache old = ourInstance;
+    ourInstance = new DirectoryListingCache(file);
+    old.close();
+  }
+
+  public static boolean isFixedVersion(@NotNull final String dirPathWithVersion) {
+    return FIXED_VERSION_PATTERN.matcher(dirPathWithVersion).matches();
+  }
+
+  @Nullable
+  public synchronized List<SimpleDirectoryChildElement> get(@NotNull final String dirPathWithVersion) {
+    final String key = normalize(dirPathWithVersion);
+    final String[] encoded = myListings.get(key);
+    return encoded == null ? null : decode(key, encoded);
+  }
+
+  public synchronized void put(@NotNull final String dirPathWithVersion, @NotNull final List<SimpleDirectoryChildElement> children) {
+    if (!isFixedVersion(dirPathWithVersion)) return;
+    final String key = normalize(dirPathWithVersion);
+    final String[] encoded = encode(key, children);
+    myListings.put(key, encoded);
+    if (myJournal != null) {
+      myJournal.append(key, encoded, myListings);
+    }
+  }
+
+  @NotNull
+  private static String normalize(@NotNull final String dirPathWithVersion) {
+    final String path = CCPathElement.normalizeSeparators(dirPathWithVersion);
+    return path.endsWith(File.separator) ? path.substring(0, path.length() - 1) : path;
+  }
+
+  /**
+   * Every child is stored as a type byte followed by the name, or by the full path if it is not under the directory.
+   */
+  @NotNull
+  private static String[] encode(@NotNull final String key, @NotNull final List<SimpleDirectoryChildElement> children) {
+    final String prefix = key + File.separator;
+    final String[] result = new String[children.size()];
+    for (int i = 0; i < result.length; i++) {
+      final SimpleDirectoryChildElement child = children.get(i);
+      final String path = child.getPathWithoutVersion();
+      byte type = child.getType() == SimpleDirectoryChildElement.Type.DIRECTORY ? DIRECTORY_TYPE : FILE_TYPE;
+      final String name;
+      if (path.startsWith(prefix)) {
+        name = path.substring(prefix.length());
+      }
+      else {
+        type |= FULL_PATH_FLAG;
+        name = path;
+      }
+      result[i] = (char)type + name;
+    }
+    return result;
+  }
+
+  @NotNull
+  private static List<SimpleDirectoryChildElement> decode(@NotNull final String key, @NotNull final String[] encoded) {
+    final List<SimpleDirectoryChildElement> result = new ArrayList<SimpleDirectoryChildElement>(encoded.length);
+    for (final String child : encoded) {
+      final int type = child.charAt(0);
+      final String name = child.substring(1);
+      result.add(new SimpleDirectoryChildElement((type & FULL_PATH_FLAG) != 0 ? name : key + File.separator + name,
+                                                 (type & DIRECTORY_TYPE) != 0 ? SimpleDirectoryChildElement.Type.DIRECTORY : SimpleDirectoryChildElement.Type.FILE));
+    }
+    return result;
+  }
+
+  private synchronized void close() {
+    if (myJournal != null) {
+      myJournal.close();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * In a dynamic view every version is visible through MVFS as a plain file at its version-extended path
+ * (e.g. "file@@/main/br/12"), so its content can be read directly instead of "cleartool get" into a temp file.
+ * In a snapshot view such path does not exist and {@link #getVersionFile(String)} returns null.
+ */
+class DynamicViewContentReader {
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+  @Nullable
+  static File getVersionFile(@NotNull final String pathWithVersion) {
+    final File file = new File(pathWithVersion);
+    return file.isFile() && file.canRead() ? file : null;
+  }
+
+  /**
+   * The file is streamed through a heap buffer of a fixed size whatever its size is. It is not memory-mapped:
+   * a mapping is released only by GC, so the mapped MVFS files would stay open long after the patch is built.
+   */
+  @NotNull
+  static InputStream openStream(@NotNull final File file) throws IOException {
+    return new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+  }
+
+  @NotNull
+  static byte[] readContent(@NotNull final File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new IOException("File is too large: " + file);
+      final ByteBuffer buffer = ByteBuffer.allocate((int)size);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // read until the end of the file
+      }
+      if (buffer.hasRemaining()) throw new IOException("Unexpected end of file: " + file);
+      return buffer.array();
+    }
+    finally {
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Server-wide LRU cache of the element attributes (text/executable). The element type and the protection are changed by
+ * "chtype" and "protect" only, such events invalidate the entry (see {@link #isAttributeChangeEvent(HistoryElement)}).
+ * These are minor events, the time they were last read is kept per view, so they are not read by every request.
+ * The elements are keyed by the path through the versions of their parent directories (see {@link ClearCaseConnection#getFileAttrKey(String)}),
+ * so the views of the same VOB share the entries of the same elements only. The events report the element names,
+ * so the keys are indexed by the element name without versions (see {@link ClearCaseConnection#getElementName(String)}).
+ * If a file is specified, every change is appended to it and the file is rewritten from memory when it grows too much.
+ */
+public class FileAttributeCache {
+  private static final Logger LOG = Logger.getLogger(FileAttributeCache.class);
+
+  private static final int FORMAT_VERSION = 3;
+  private static final byte TEXT_FLAG = 1;
+  private static final byte EXECUTABLE_FLAG = 2;
+  private static final byte INVALIDATED = -1;
+
+  private static volatile FileAttributeCache ourInstance = new FileAttributeCache(null);
+
+  private final int myMaxSize;
+  @NotNull private final LinkedHashMap<String, ClearCaseFileAttr> myAttributes;
+  @Nullable private final CacheJournal<ClearCaseFileAttr> myJournal;
+  @NotNull private final Map<String, Set<String>> myKeysByElement = new HashMap<String, Set<String>>();
+  /**
+   * The times the minor events of the views were checked for the attribute changes, by view path
+   */
+  @NotNull private final Map<String, Long> myCheckTimes = new ConcurrentHashMap<String, Long>();
+
+  FileAttributeCache(@Nullable final File file) {
+    myMaxSize = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_FILE_ATTRIBUTE_CACHE_SIZE, 200000));
+    myAttributes = new LinkedHashMap<String, ClearCaseFileAttr>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, ClearCaseFileAttr> eldest) {
+        if (size() <= myMaxSize) return false;
+        removeFromIndex(eldest.getKey());
+        return true;
+      }
+    };
+    myJournal = file == null ? null : new CacheJournal<ClearCaseFileAttr>(file, FORMAT_VERSION, "file attribute cache") {
+      @Nullable
+      @Override
+      protected ClearCaseFileAttr readValue(@NotNull final DataInputStream input) throws IOException {
+        final byte flags = input.readByte();
+        return flags == INVALIDATED ? null : new ClearCaseFileAttr((flags & EXECUTABLE_FLAG) != 0, (flags & TEXT_FLAG) != 0);
+      }
+
+      @Override
+      protected void writeValue(@NotNull final DataOutputStream output, @Nullable final ClearCaseFileAttr attr) throws IOException {
+        output.writeByte(attr == null ? INVALIDATED : (byte)((attr.isIsText() ? TEXT_FLAG : 0) | (attr.isIsExecutable() ? EXECUTABLE_FLAG : 0)));
+      }
+    };
+    if (myJournal != null) {
+      myJournal.load(myAttributes);
+      myKeysByElement.clear();
+      for (final String key : myAttributes.keySet()) {
+        addToIndex(key);
+      }
+    }
+  }
+
+  @NotNull
+  public static FileAttributeCache getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * Makes the cache persistent, called once on the server start
+   */
+  public static void init(@NotNull final File file) {
+    final FileAttributeCache old = ourInstance;
+    ourInstance = new FileAttributeCache(file);
+    old.close();
+  }
+
+  public static boolean isAttributeChangeEvent(@NotNull final HistoryElement element) {
+    return "chtype".equals(element.getOperation()) || "protect".equals(element.getOperation());
+  }
+
+  /**
+   * @return the time the minor events of the view were last read, null if they were not read since the server start
+   */
+  @Nullable
+  public Long getCheckTime(@NotNull final String view) {
+    return myCheckTimes.get(view);
+  }
+
+  /**
+   * Records the check of the minor events of the view started at checkTime
+   * @param fromTime the time the events were read since, the check is recorded only if it covers the time since the previous check
+   */
+  public synchronized void checked(@NotNull final String view, @Nullable final Long fromTime, final long checkTime) {
+    final Long lastCheckTime = myCheckTimes.get(view);
+    if (lastCheckTime == null || fromTime != null && fromTime <= lastCheckTime && checkTime > lastCheckTime) {
+      myCheckTimes.put(view, checkTime);
+    }
+  }
+
+  @Nullable
+  public synchronized ClearCaseFileAttr get(@NotNull final String key) {
+    return myAttributes.get(key);
+  }
+
+  public synchronized void put(@NotNull final String key, @NotNull final ClearCaseFileAttr attr) {
+    if (myAttributes.put(key, attr) == null) {
+      addToIndex(key);
+    }
+    if (myJournal != null) {
+      myJournal.append(key, attr, myAttributes);
+    }
+  }
+
+  /**
+   * Invalidates the attributes of all the elements of the name in all the views
+   */
+  public synchronized void invalidateElement(@NotNull final String elementName) {
+    final Set<String> keys = myKeysByElement.remove(elementName);
+    if (keys == null) return;
+    for (final String key : keys) {
+      if (myAttributes.remove(key) != null) {
+        LOG.debug("Attributes of \"" + key + "\" are invalidated");
+        if (myJournal != null) {
+          myJournal.append(key, null, myAttributes);
+        }
+      }
+    }
+  }
+
+  private void addToIndex(@NotNull final String key) {
+    final String elementName = getElementName(key);
+    Set<String> keys = myKeysByElement.get(elementName);
+    if (keys == null) {
+      keys = new HashSet<String>(2);
+      myKeysByElement.put(elementName, keys);
+    }
+    keys.add(key);
+  }
+
+  private void removeFromIndex(@NotNull final String key) {
+    final String elementName = getElementName(key);
+    final Set<String> keys = myKeysByElement.get(elementName);
+    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+      myKeysByElement.remove(elementName);
+    }
+  }
+
+  @NotNull
+  private static String getElementName(@NotNull final String key) {
+    return CCPathElement.createPathWithoutVersions(CCPathElement.splitIntoPathElements(key));
+  }
+
+  private synchronized void close() {
+    if (myJournal != null) {
+      myJournal.close();
+    }
+  }
+}
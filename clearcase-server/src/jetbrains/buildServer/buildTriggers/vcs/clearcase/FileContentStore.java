@@ -0,0 +1,246 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Disk store of the file version contents shared by all VCS roots, patches and the diff viewer.
+ * A content of a fixed version (e.g. "file@@/main/br/12") never changes, so it is kept as a blob named by its SHA-1
+ * under "blobs" and referenced from "refs" by the hash of the element path and version.
+ * The least recently used blobs are removed when the total size exceeds the limit.
+ */
+public class FileContentStore {
+  private static final Logger LOG = Logger.getLogger(FileContentStore.class);
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  @Nullable private static volatile FileContentStore ourInstance;
+
+  @NotNull private final File myBlobsDir;
+  @NotNull private final File myRefsDir;
+  private final long myMaxSize;
+  private long myTotalSize = -1;
+
+  FileContentStore(@NotNull final File baseDir) {
+    myBlobsDir = new File(baseDir, "blobs");
+    myRefsDir = new File(baseDir, "refs");
+    myMaxSize = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_CONTENT_STORE_MAX_SIZE_MB, 1024)) * 1024L * 1024L;
+  }
+
+  /**
+   * @return null if the store is not initialized (e.g. caches are disabled)
+   */
+  @Nullable
+  public static FileContentStore getInstance() {
+    return ourInstance;
+  }
+
+  public static void init(@NotNull final File baseDir) {
+    ourInstance = new FileContentStore(baseDir);
+  }
+
+  /**
+   * @param key element path with version relative to the view root, see {@link #isCacheable(String)}
+   * @return the file holding the content, must not be modified by the caller
+   */
+  @Nullable
+  public File get(@NotNull final String key) {
+    final File ref = getRefFile(key);
+    if (!ref.isFile()) return null;
+    try {
+      final String[] lines = FileUtil.readText(ref, "UTF-8").split("\n", 2);
+      if (lines.length < 2 || !lines[1].equals(key)) return null; // hash collision or broken ref
+      final File blob = getBlobFile(lines[0].trim());
+      if (!blob.isFile()) {
+        FileUtil.delete(ref);
+        return null;
+      }
+      //noinspection ResultOfMethodCallIgnored
+      blob.setLastModified(System.currentTimeMillis());
+      return blob;
+    }
+    catch (final IOException e) {
+      LOG.debug("Failed to read content reference " + ref + ": " + e.getLocalizedMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Copies the content into the store, errors are logged and ignored
+   */
+  public void put(@NotNull final String key, @NotNull final File content) {
+    try {
+      final String hash = calcHash(content);
+      final File blob = getBlobFile(hash);
+      if (!blob.isFile()) {
+        final File tmp = createTempFile(blob.getParentFile());
+        FileUtil.copy(content, tmp);
+        if (!tmp.renameTo(blob) && !blob.isFile()) {
+          FileUtil.delete(tmp);
+          throw new IOException("Failed to rename " + tmp + " to " + blob);
+        }
+        FileUtil.delete(tmp);
+        onBlobAdded(blob.length());
+      }
+      final File ref = getRefFile(key);
+      final File tmp = createTempFile(ref.getParentFile());
+      FileUtil.writeFile(tmp, hash + "\n" + key, "UTF-8");
+      FileUtil.delete(ref);
+      if (!tmp.renameTo(ref)) {
+        FileUtil.delete(tmp);
+      }
+    }
+    catch (final IOException e) {
+      LOG.warn("Failed to store content of " + key + ": " + e.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * @return true if the path addresses a fixed version of the element, not a LATEST or CHECKEDOUT one
+   */
+  public static boolean isCacheable(@NotNull final String pathWithVersion) {
+    return DirectoryListingCache.isFixedVersion(pathWithVersion);
+  }
+
+  private synchronized void onBlobAdded(final long size) {
+    if (myTotalSize < 0) {
+      myTotalSize = 0;
+      for (final File blob : listBlobs()) {
+        myTotalSize += blob.length();
+      }
+    }
+    else {
+      myTotalSize += size;
+    }
+    if (myTotalSize > myMaxSize) {
+      evict();
+    }
+  }
+
+  private void evict() {
+    final List<File> blobs = listBlobs();
+    final Map<File, Long> lastModified = new HashMap<File, Long>();
+    for (final File blob : blobs) {
+      lastModified.put(blob, blob.lastModified());
+    }
+    Collections.sort(blobs, new Comparator<File>() {
+      public int compare(final File o1, final File o2) {
+        return lastModified.get(o1).compareTo(lastModified.get(o2));
+      }
+    });
+    final long target = myMaxSize * 9 / 10;
+    for (final File blob : blobs) {
+      if (myTotalSize <= target) break;
+      final long size = blob.length();
+      if (FileUtil.delete(blob)) {
+        myTotalSize -= size;
+      }
+    }
+    LOG.debug("Content store size after eviction: " + myTotalSize + " bytes");
+  }
+
+  @NotNull
+  private List<File> listBlobs() {
+    final List<File> result = new ArrayList<File>();
+    final File[] dirs = myBlobsDir.listFiles();
+    if (dirs == null) return result;
+    for (final File dir : dirs) {
+      final File[] blobs = dir.listFiles();
+      if (blobs == null) continue;
+      for (final File blob : blobs) {
+        if (blob.isFile() && !blob.getName().endsWith(".tmp")) {
+          result.add(blob);
+        }
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private File getBlobFile(@NotNull final String hash) {
+    return new File(new File(myBlobsDir, hash.substring(0, 2)), hash);
+  }
+
+  @NotNull
+  private File getRefFile(@NotNull final String key) throws IOException {
+    final String hash = toHex(digest(key.getBytes("UTF-8")));
+    return new File(new File(myRefsDir, hash.substring(0, 2)), hash);
+  }
+
+  @NotNull
+  private static File createTempFile(@NotNull final File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Failed to create directory " + dir);
+    }
+    return File.createTempFile("content", ".tmp", dir);
+  }
+
+  /**
+   * @return the SHA-1 of the file content as a hex string, the content identity used by the store and by {@link PatchContentIndex}
+   */
+  @NotNull
+  static String calcHash(@NotNull final File file) throws IOException {
+    final MessageDigest digest = createDigest();
+    final InputStream input = new BufferedInputStream(new FileInputStream(file));
+    try {
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    finally {
+      input.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  @NotNull
+  private static byte[] digest(@NotNull final byte[] bytes) {
+    return createDigest().digest(bytes);
+  }
+
+  @NotNull
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    }
+    catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static String toHex(@NotNull final byte[] bytes) {
+    final char[] result = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      result[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      result[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(result);
+  }
+}
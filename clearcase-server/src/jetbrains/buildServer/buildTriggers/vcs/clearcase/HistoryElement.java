@@ -23,6 +23,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import jetbrains.buildServer.vcs.VcsException;
 import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class HistoryElement {
@@ -39,8 +40,10 @@ public class HistoryElement {
   private final String myComment;
   private final String myActivity;
   private final long myEventID;
+  private final boolean myDetailsLoaded;
 
   private static final int EXPECTED_CHANGE_FIELD_COUNT = 9;
+  private static final int LIGHTWEIGHT_CHANGE_FIELD_COUNT = 7;
   private static final String EVENT = "event ";
   private static final ThreadLocal<DateFormat> ourDateFormat = new ThreadLocal<DateFormat>() {
     @Override
@@ -58,7 +61,8 @@ public class HistoryElement {
                          final String operation,
                          final String event,
                          final String comment,
-                         final String activity) throws ParseException {
+                         final String activity,
+                         final boolean detailsLoaded) throws ParseException {
     myEventID = Long.parseLong(eventId);
     myUser = user;
     myDateString = dateString;
@@ -70,6 +74,7 @@ public class HistoryElement {
     myEvent = event;
     myComment = comment;
     myActivity = activity;
+    myDetailsLoaded = detailsLoaded;
   }
 
   private static HistoryElement createHistoryElement(final String eventId,
@@ -81,16 +86,17 @@ public class HistoryElement {
                                                      final String operation,
                                                      final String event,
                                                      final String comment,
-                                                     final String activity) throws ParseException {
+                                                     final String activity,
+                                                     final boolean detailsLoaded) throws ParseException {
     String kind = objectKind, version = objectVersion;
-    if ("rmver".equals(operation) && "destroy version on branch".equals(event)) {
+    if (detailsLoaded && isDestroyVersionEvent(operation, event)) {
       final String extractedVersion = extractVersion(comment);
       if (extractedVersion != null) {
         kind = "version";
         version = extractedVersion;
       }
     }
-    return new HistoryElement(eventId, user, date, objectName, kind, version, operation, event, comment, activity);
+    return new HistoryElement(eventId, user, date, objectName, kind, version, operation, event, comment, activity, detailsLoaded);
 
   }
 
@@ -113,15 +119,41 @@ public class HistoryElement {
     }
     final String eventId = parts[0].trim();
     final String[] strings = parts[1].trim().split(ClearCaseConnection.DELIMITER, EXPECTED_CHANGE_FIELD_COUNT);
-    if (strings.length < EXPECTED_CHANGE_FIELD_COUNT - 1) {
+    if (strings.length == LIGHTWEIGHT_CHANGE_FIELD_COUNT) { // see ClearCaseConnection.LIGHTWEIGHT_FORMAT
+      return createHistoryElement(eventId, strings[0], strings[1], strings[2], strings[3], strings[4], strings[5], strings[6], "", "", false);
+    } else if (strings.length < EXPECTED_CHANGE_FIELD_COUNT - 1) {
       return null;
     } else if (strings.length == EXPECTED_CHANGE_FIELD_COUNT - 1) {
-      return createHistoryElement(eventId, strings[0], strings[1], strings[2], strings[3], strings[4], strings[5], strings[6], strings[7], "");
+      return createHistoryElement(eventId, strings[0], strings[1], strings[2], strings[3], strings[4], strings[5], strings[6], strings[7], "", true);
     } else {
-      return createHistoryElement(eventId, strings[0], strings[1], strings[2], strings[3], strings[4], strings[5], strings[6], strings[7], strings[8]);
+      return createHistoryElement(eventId, strings[0], strings[1], strings[2], strings[3], strings[4], strings[5], strings[6], strings[7], strings[8], true);
     }
   }
 
+  /**
+   * @return the copy of this element with the comment and the activity which were omitted by the lightweight "lshistory" format
+   */
+  @NotNull
+  public HistoryElement withDetails(@Nullable final String comment, @Nullable final String activity) throws ParseException {
+    return createHistoryElement(String.valueOf(myEventID), myUser, myDateString, myObjectName, myObjectKind, myObjectVersion, myOperation, myEvent,
+                                comment == null ? "" : comment, activity == null ? "" : activity, true);
+  }
+
+  public boolean isDetailsLoaded() {
+    return myDetailsLoaded;
+  }
+
+  /**
+   * @return true if the destroyed version can be extracted from the event comment only
+   */
+  public boolean isDestroyVersionEvent() {
+    return isDestroyVersionEvent(myOperation, myEvent);
+  }
+
+  private static boolean isDestroyVersionEvent(final String operation, final String event) {
+    return "rmver".equals(operation) && "destroy version on branch".equals(event);
+  }
+
   public ChangeInfo getChangeInfo() {
     return new ChangeInfo(myEventID, myDate);
   }
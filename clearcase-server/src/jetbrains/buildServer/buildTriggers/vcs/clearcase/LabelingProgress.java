@@ -0,0 +1,163 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.util.FileUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The progress of one label: the counters of the labeled elements and the journal of the completed subtrees.
+ * The journal has a line "include rule path TAB subtree" for every subtree labeled completely, it survives a failed labeling,
+ * so the labeling of the same label and version started again skips these subtrees. The journal is removed when the labeling succeeds.
+ */
+public class LabelingProgress {
+  private static final Logger LOG = Logger.getLogger(LabelingProgress.class);
+  private static final long LOG_INTERVAL = 10000;
+
+  @NotNull private final String myLabel;
+  @NotNull private final String myVersion;
+  @Nullable private final File myJournalFile;
+  @NotNull private final Set<String> myCompleted = Collections.synchronizedSet(new HashSet<String>());
+  @NotNull private final AtomicLong myLabeled = new AtomicLong();
+  @NotNull private final AtomicLong mySkipped = new AtomicLong();
+  @NotNull private final AtomicLong myEstimatedTotal = new AtomicLong();
+
+  LabelingProgress(@NotNull final String label, @NotNull final String version, @Nullable final File journalFile) {
+    myLabel = label;
+    myVersion = version;
+    myJournalFile = journalFile;
+    if (journalFile != null && journalFile.isFile()) {
+      readJournal(journalFile);
+      LOG.info("Labeling " + this + " is resumed, " + myCompleted.size() + " subtrees were labeled before");
+    }
+  }
+
+  @NotNull
+  public String getLabel() {
+    return myLabel;
+  }
+
+  @NotNull
+  public String getVersion() {
+    return myVersion;
+  }
+
+  /**
+   * @return the number of the elements labeled so far, including the elements of the subtrees labeled by a previous attempt
+   */
+  public long getLabeledCount() {
+    return myLabeled.get() + mySkipped.get();
+  }
+
+  /**
+   * @return the number of the elements of the subtrees labeled by a previous attempt
+   */
+  public long getSkippedCount() {
+    return mySkipped.get();
+  }
+
+  /**
+   * @return the number of the elements to label according to the structure cache, 0 if unknown
+   */
+  public long getEstimatedTotal() {
+    return myEstimatedTotal.get();
+  }
+
+  void addEstimatedTotal(final long count) {
+    if (count > 0) {
+      myEstimatedTotal.addAndGet(count);
+    }
+  }
+
+  boolean isCompleted(@NotNull final String includePath, @NotNull final String subtree) {
+    return myCompleted.contains(getKey(includePath, subtree));
+  }
+
+  void elementsLabeled(final int count) {
+    final long before = myLabeled.getAndAdd(count);
+    if ((before + count) / LOG_INTERVAL != before / LOG_INTERVAL) {
+      LOG.info("Labeling " + this);
+    }
+  }
+
+  void elementsSkipped(final long count) {
+    mySkipped.addAndGet(count);
+  }
+
+  synchronized void subtreeCompleted(@NotNull final String includePath, @NotNull final String subtree) {
+    final String key = getKey(includePath, subtree);
+    if (!myCompleted.add(key) || myJournalFile == null) return;
+    try {
+      final File dir = myJournalFile.getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Failed to create directory " + dir);
+      final Writer writer = new OutputStreamWriter(new FileOutputStream(myJournalFile, true), "UTF-8");
+      try {
+        writer.write(key);
+        writer.write('\n');
+      }
+      finally {
+        writer.close();
+      }
+    }
+    catch (final IOException e) {
+      LOG.debug("Failed to write label journal " + myJournalFile + ": " + e.getMessage());
+    }
+  }
+
+  void finished() {
+    if (myJournalFile != null) {
+      FileUtil.delete(myJournalFile);
+    }
+    LOG.info("Labeling " + this + " finished");
+  }
+
+  @Override
+  public String toString() {
+    final long total = getEstimatedTotal();
+    return "\"" + myLabel + "\" of " + myVersion + ": " + getLabeledCount() + (total > 0 ? " of ~" + total : "") + " elements labeled" +
+           (mySkipped.get() > 0 ? " (" + mySkipped.get() + " by a previous attempt)" : "");
+  }
+
+  private void readJournal(@NotNull final File journalFile) {
+    try {
+      // the last line may be incomplete if the previous attempt was killed while writing it
+      final String text = FileUtil.readText(journalFile, "UTF-8");
+      final int end = text.lastIndexOf('\n');
+      if (end < 0) return;
+      for (final String line : text.substring(0, end).split("\n")) {
+        if (line.length() > 0) {
+          myCompleted.add(line);
+        }
+      }
+    }
+    catch (final IOException e) {
+      LOG.debug("Failed to read label journal " + journalFile + ": " + e.getMessage());
+    }
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final String includePath, @NotNull final String subtree) {
+    return includePath + "\t" + subtree;
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Attaches the label to the versions reported by one walk, the "mklabel" batches are run by the executor, every worker thread runs its batches
+ * on its own long-lived cleartool process of the {@link ClearCaseCollectionSession.WorkerConnections}.
+ * The work is partitioned by the top-level subtrees of the walk, the root directory and the top-level files make one more partition.
+ * The walk itself stays on the connection it was started with, {@link #finish()} waits for the batches and reports all the failed partitions at once.
+ * A partition is recorded in the {@link LabelingProgress} journal once all its batches succeeded, the walk does not descend into the top-level
+ * subtrees recorded by a previous attempt, see {@link #processSubtree}. Their elements are not seen, so they are counted as skipped from the estimate.
+ */
+class ParallelLabeler implements SubtreeVersionProcessor {
+  private static final Logger LOG = Logger.getLogger(ParallelLabeler.class);
+
+  @NotNull private final String myLabel;
+  @NotNull private final ClearCaseCollectionSession.WorkerConnections myConnections;
+  @NotNull private final ExecutorService myExecutor;
+  @NotNull private final LabelingProgress myProgress;
+  @NotNull private final String myIncludePath;
+  private final int myBatchSize;
+  private final int myMaxQueuedBatches;
+  private final long myEstimatedCount;
+  private long myAddedCount;
+  private boolean mySkippedBefore;
+  @NotNull private final Partition myRootPartition;
+  @Nullable private Partition myPartition;
+  @NotNull private final List<Partition> myPartitions = new ArrayList<Partition>();
+  @NotNull private final List<Future<Void>> myQueue = new ArrayList<Future<Void>>();
+
+  ParallelLabeler(@NotNull final String label,
+                  @NotNull final ClearCaseCollectionSession.WorkerConnections connections,
+                  @NotNull final ExecutorService executor,
+                  final int parallelism,
+                  @NotNull final LabelingProgress progress,
+                  @NotNull final String includePath,
+                  final long estimatedCount) {
+    myLabel = label;
+    myConnections = connections;
+    myExecutor = executor;
+    myProgress = progress;
+    myIncludePath = includePath;
+    myBatchSize = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_MKLABEL_BATCH_SIZE, 100));
+    myMaxQueuedBatches = 4 * parallelism;
+    myEstimatedCount = estimatedCount;
+    myRootPartition = new Partition("");
+    myPartitions.add(myRootPartition);
+  }
+
+  public void processFile(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection, final boolean text, final boolean executable) throws VcsException {
+    getPartition(relPath, false).add(version, ClearCaseConnection.insertDots(fileFullPath, false));
+  }
+
+  public void processDirectory(final String fileFullPath, final String relPath, final String pname, final String version, final ClearCaseConnection clearCaseConnection) throws VcsException {
+    getPartition(relPath, true).add(version, ClearCaseConnection.insertDots(fileFullPath, true));
+  }
+
+  public void finishProcessingDirectory() {
+  }
+
+  /**
+   * @return true for a top-level directory labeled completely by a previous attempt, the walk skips it then
+   */
+  public boolean processSubtree(final String fileFullPath, final String relPath, final String pname, final String version) {
+    final String name = getPartitionName(relPath, true);
+    if (name.length() == 0 || !name.equals(relPath.replace('/', File.separatorChar)) || !myProgress.isCompleted(myIncludePath, name)) return false;
+    mySkippedBefore = true;
+    return true;
+  }
+
+  public void subtreeCompleted(final String relPath) {
+  }
+
+  /**
+   * Submits the rest of the batches and waits for all of them
+   * @throws VcsException describing every partition that was not labeled completely
+   */
+  public void finish() throws VcsException {
+    if (myPartition != null) {
+      myPartition.close();
+      myPartition = null;
+    }
+    myRootPartition.close();
+    if (mySkippedBefore && myEstimatedCount > myAddedCount) {
+      myProgress.elementsSkipped(myEstimatedCount - myAddedCount);
+    }
+
+    final List<String> failed = new ArrayList<String>();
+    Throwable firstError = null;
+    for (final Partition partition : myPartitions) {
+      final Throwable error = partition.await();
+      if (error == null) continue;
+      if (firstError == null) {
+        firstError = error;
+      }
+      failed.add((partition.myName.length() == 0 ? "<root>" : partition.myName) + ": " + error.getMessage());
+    }
+    myQueue.clear();
+    if (firstError == null) return;
+    if (failed.size() == 1 && firstError instanceof VcsException) throw (VcsException)firstError;
+    throw new VcsException("Failed to attach label \"" + myLabel + "\" in " + failed.size() + " of " + myPartitions.size() + " subtrees: " + failed, firstError);
+  }
+
+  @NotNull
+  private Partition getPartition(@Nullable final String relPath, final boolean isDirectory) throws VcsException {
+    final String name = getPartitionName(relPath, isDirectory);
+    if (name.length() == 0) return myRootPartition;
+    if (myPartition != null) {
+      if (myPartition.myName.equals(name)) return myPartition;
+      myPartition.close();
+    }
+    myPartition = new Partition(name);
+    myPartitions.add(myPartition);
+    return myPartition;
+  }
+
+  @NotNull
+  private static String getPartitionName(@Nullable final String relPath, final boolean isDirectory) {
+    if (relPath == null) return "";
+    final String path = relPath.replace('/', File.separatorChar);
+    final int pos = path.indexOf(File.separatorChar);
+    if (pos >= 0) return path.substring(0, pos);
+    return isDirectory ? path : "";
+  }
+
+  private void submit(@NotNull final Partition partition, @NotNull final String version, @NotNull final List<String> pnames) throws VcsException {
+    awaitQueue();
+    partition.batchSubmitted();
+    final Future<Void> future = myExecutor.submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        boolean succeeded = false;
+        try {
+          myConnections.withConnection(new ClearCaseSupport.ConnectionProcessor() {
+            public void process(@NotNull final ClearCaseConnection connection) throws VcsException, IOException {
+              connection.mklabel(version, pnames, myLabel);
+            }
+          });
+          myProgress.elementsLabeled(pnames.size());
+          succeeded = true;
+          return null;
+        }
+        finally {
+          partition.batchFinished(succeeded);
+        }
+      }
+    });
+    partition.myFutures.add(future);
+    myQueue.add(future);
+  }
+
+  /**
+   * Keeps the walk from getting too far ahead of the labeling, so the element names do not pile up in the executor queue
+   */
+  private void awaitQueue() throws VcsException {
+    while (myQueue.size() >= myMaxQueuedBatches) {
+      final Future<Void> oldest = myQueue.remove(0);
+      try {
+        oldest.get();
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException(e);
+      }
+      catch (final ExecutionException e) {
+        // reported by finish()
+      }
+    }
+  }
+
+  private class Partition {
+    @NotNull private final String myName;
+    private final boolean myCompletedBefore;
+    @NotNull private final Map<String, List<String>> myPending = new LinkedHashMap<String, List<String>>();
+    @NotNull private final List<Future<Void>> myFutures = new ArrayList<Future<Void>>();
+    private int myRunningBatches;
+    private boolean myClosed;
+    private boolean myFailed;
+
+    private Partition(@NotNull final String name) {
+      myName = name;
+      myCompletedBefore = myProgress.isCompleted(myIncludePath, name);
+    }
+
+    private void add(@NotNull final String version, @NotNull final String pname) throws VcsException {
+      if (myCompletedBefore) {
+        mySkippedBefore = true;
+        return;
+      }
+      myAddedCount++;
+      List<String> pnames = myPending.get(version);
+      if (pnames == null) {
+        pnames = new ArrayList<String>();
+        myPending.put(version, pnames);
+      }
+      pnames.add(pname);
+      if (pnames.size() >= myBatchSize) {
+        myPending.remove(version);
+        submit(this, version, pnames);
+      }
+    }
+
+    /**
+     * Submits the rest of the batches, no elements are added after that
+     */
+    private void close() throws VcsException {
+      for (final Map.Entry<String, List<String>> entry : myPending.entrySet()) {
+        submit(this, entry.getKey(), entry.getValue());
+      }
+      myPending.clear();
+      synchronized (this) {
+        myClosed = true;
+        checkCompleted();
+      }
+    }
+
+    private synchronized void batchSubmitted() {
+      myRunningBatches++;
+    }
+
+    private synchronized void batchFinished(final boolean succeeded) {
+      myRunningBatches--;
+      myFailed |= !succeeded;
+      checkCompleted();
+    }
+
+    private void checkCompleted() {
+      if (myClosed && myRunningBatches == 0 && !myFailed && !myCompletedBefore) {
+        myProgress.subtreeCompleted(myIncludePath, myName);
+      }
+    }
+
+    @Nullable
+    private Throwable await() throws VcsException {
+      Throwable error = null;
+      for (final Future<Void> future : myFutures) {
+        try {
+          future.get();
+        }
+        catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new VcsException(e);
+        }
+        catch (final ExecutionException e) {
+          if (error == null) {
+            error = e.getCause();
+          }
+          else {
+            LOG.debug("Suppressed error of labeling " + myName + ": " + e.getCause(), e.getCause());
+          }
+        }
+      }
+      myFutures.clear();
+      return error;
+    }
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcess;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.process.ClearCaseInteractiveProcessPool;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.patches.PatchBuilder;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Builds a full patch fetching the file contents by several cleartool processes into a staging directory.
+ * The entries are written to the PatchBuilder by the walking thread only and exactly in the walking order.
+ * The walk is suspended while too many entries are pending or the staged files take too much space.
+ */
+class ParallelPatchProcessor implements VersionProcessor {
+  private static final Logger LOG = Logger.getLogger(ParallelPatchProcessor.class);
+
+  private static final String EXECUTABLE_ATTR = "ugo+x";
+  private static final FileEntry STOP = new FileEntry("", "", false, false);
+
+  @NotNull private final ClearCaseConnection myConnection;
+  @NotNull private final PatchBuilder myBuilder;
+  private final int myParallelism;
+  private final long myMaxStagedBytes;
+  private final int myMaxPendingEntries;
+  @Nullable private final PatchContentIndex myContentIndex;
+
+  @NotNull private final ArrayDeque<Entry> myPending = new ArrayDeque<Entry>();
+  @NotNull private final BlockingQueue<FileEntry> myQueue = new LinkedBlockingQueue<FileEntry>();
+  @NotNull private final AtomicLong myStagedBytes = new AtomicLong();
+  @Nullable private ExecutorService myExecutor;
+  @Nullable private File myStagingDir;
+
+  ParallelPatchProcessor(@NotNull final ClearCaseConnection connection,
+                         @NotNull final PatchBuilder builder,
+                         final int parallelism,
+                         final long maxStagedBytes,
+                         @Nullable final PatchContentIndex contentIndex) {
+    myConnection = connection;
+    myBuilder = builder;
+    myParallelism = parallelism;
+    myMaxStagedBytes = maxStagedBytes;
+    myMaxPendingEntries = parallelism * 64;
+    myContentIndex = contentIndex;
+  }
+
+  public void processFile(final String fileFullPath,
+                          final String relPath,
+                          final String pname,
+                          final String version,
+                          final ClearCaseConnection clearCaseConnection,
+                          final boolean text,
+                          final boolean executable) throws VcsException {
+    ensureStarted();
+    final FileEntry entry = new FileEntry(fileFullPath, relPath, text, executable);
+    myPending.add(entry);
+    myQueue.add(entry);
+    writeReadyEntries();
+  }
+
+  public void processDirectory(final String fileFullPath,
+                               final String relPath,
+                               final String pname,
+                               final String version,
+                               final ClearCaseConnection clearCaseConnection) throws VcsException {
+    myPending.add(new DirectoryEntry(relPath));
+    writeReadyEntries();
+  }
+
+  public void finishProcessingDirectory() {
+  }
+
+  /**
+   * Writes all the remaining entries, must be called after the walk is finished
+   */
+  void finish() throws VcsException {
+    while (!myPending.isEmpty()) {
+      writeHead();
+    }
+  }
+
+  void dispose() {
+    if (myExecutor != null) {
+      for (int i = 0; i < myParallelism; i++) {
+        myQueue.add(STOP);
+      }
+      myExecutor.shutdownNow();
+      myExecutor = null;
+    }
+    if (myStagingDir != null) {
+      FileUtil.delete(myStagingDir);
+      myStagingDir = null;
+    }
+  }
+
+  private void ensureStarted() throws VcsException {
+    if (myExecutor != null) return;
+    try {
+      myStagingDir = FileUtil.createTempDirectory("cc", "patch");
+    }
+    catch (final IOException e) {
+      throw new VcsException(e);
+    }
+    myExecutor = ExecutorsFactory.newFixedExecutor("ClearCase patch content loading", myParallelism);
+    for (int i = 0; i < myParallelism; i++) {
+      myExecutor.submit(new Callable<Void>() {
+        public Void call() {
+          try {
+            ClearCaseInteractiveProcessPool.doWithProcess(myConnection.getViewWholePath(), new ClearCaseInteractiveProcessPool.ProcessRunnable() {
+              public void run(@NotNull final ClearCaseInteractiveProcess process) {
+                fetchLoop(process);
+              }
+            });
+          }
+          catch (final Exception e) {
+            LOG.debug("Failed to start cleartool process for content loading: " + e.getLocalizedMessage(), e);
+            failLoop(e);
+          }
+          return null;
+        }
+      });
+    }
+  }
+
+  private void fetchLoop(@NotNull final ClearCaseInteractiveProcess process) {
+    try {
+      FileEntry entry;
+      while ((entry = myQueue.take()) != STOP) {
+        entry.fetch(process, myConnection.getClearCaseViewPath(), myStagingDir, myStagedBytes);
+      }
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Fails the entries taken by the worker which has no process, so the writer never waits for them forever
+   */
+  private void failLoop(@NotNull final Exception error) {
+    try {
+      FileEntry entry;
+      while ((entry = myQueue.take()) != STOP) {
+        entry.fail(error);
+      }
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeReadyEntries() throws VcsException {
+    while (!myPending.isEmpty() && (myPending.peek().isReady() ||
+                                    myPending.size() > myMaxPendingEntries ||
+                                    myStagedBytes.get() > myMaxStagedBytes)) {
+      writeHead();
+    }
+  }
+
+  private void writeHead() throws VcsException {
+    final Entry entry = myPending.poll();
+    try {
+      entry.write(myBuilder, myStagedBytes, myContentIndex);
+    }
+    catch (final IOException e) {
+      throw new VcsException(e);
+    }
+  }
+
+  private interface Entry {
+    boolean isReady();
+
+    void write(@NotNull PatchBuilder builder, @NotNull AtomicLong stagedBytes, @Nullable PatchContentIndex contentIndex) throws IOException, VcsException;
+  }
+
+  private static class DirectoryEntry implements Entry {
+    @NotNull private final String myRelPath;
+
+    private DirectoryEntry(@NotNull final String relPath) {
+      myRelPath = relPath;
+    }
+
+    public boolean isReady() {
+      return true;
+    }
+
+    public void write(@NotNull final PatchBuilder builder, @NotNull final AtomicLong stagedBytes, @Nullable final PatchContentIndex contentIndex) throws IOException {
+      builder.createDirectory(new File(myRelPath));
+    }
+  }
+
+  private static class FileEntry implements Entry {
+    @NotNull private final String myFullPath;
+    @NotNull private final String myRelPath;
+    private final boolean myText;
+    private final boolean myExecutable;
+    @NotNull private final CountDownLatch myFetched = new CountDownLatch(1);
+    @Nullable private volatile File myStaged;
+    @Nullable private volatile Exception myError;
+
+    private FileEntry(@NotNull final String fullPath, @NotNull final String relPath, final boolean text, final boolean executable) {
+      myFullPath = fullPath;
+      myRelPath = relPath;
+      myText = text;
+      myExecutable = executable;
+    }
+
+    private void fetch(@NotNull final ClearCaseInteractiveProcess process,
+                       @NotNull final String clearCaseViewPath,
+                       @NotNull final File stagingDir,
+                       @NotNull final AtomicLong stagedBytes) {
+      try {
+        final File staged = File.createTempFile("content", ".tmp", stagingDir);
+        FileUtil.delete(staged);
+        ClearCaseConnection.loadFileContent(process, clearCaseViewPath, staged, myFullPath);
+        if (staged.isFile()) {
+          stagedBytes.addAndGet(staged.length());
+          myStaged = staged;
+        }
+      }
+      catch (final Exception e) {
+        myError = e;
+      }
+      finally {
+        myFetched.countDown();
+      }
+    }
+
+    private void fail(@NotNull final Exception error) {
+      myError = error;
+      myFetched.countDown();
+    }
+
+    public boolean isReady() {
+      return myFetched.getCount() == 0;
+    }
+
+    public void write(@NotNull final PatchBuilder builder, @NotNull final AtomicLong stagedBytes, @Nullable final PatchContentIndex contentIndex) throws IOException, VcsException {
+      try {
+        myFetched.await();
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new VcsException(e);
+      }
+
+      final Exception error = myError;
+      if (error instanceof IOException && CCPatchProvider.isRemovedElementError((IOException)error)) {
+        LOG.warn(String.format("Could not get content of \"%s\", perhaps element was \"rmelem\"'ed. 'll produce deletion. Original message: %s",
+                               myFullPath, error.getMessage()));
+        if (contentIndex != null) {
+          contentIndex.forget(myRelPath);
+        }
+        builder.deleteFile(new File(myRelPath), false);
+        return;
+      }
+      if (error instanceof VcsException) throw (VcsException)error;
+      if (error != null) throw new VcsException(error);
+
+      final File staged = myStaged;
+      if (staged == null) return;
+      final long length = staged.length();
+      try {
+        if (contentIndex != null && !contentIndex.fileWritten(myRelPath, staged, CCPatchProvider.getIndexMode(myText, myExecutable))) {
+          return;
+        }
+        final FileInputStream input = new FileInputStream(staged);
+        try {
+          final String fileMode = myExecutable ? EXECUTABLE_ATTR : null;
+          if (myText) {
+            builder.changeOrCreateTextFile(new File(myRelPath), fileMode, input, length, null);
+          }
+          else {
+            builder.changeOrCreateBinaryFile(new File(myRelPath), fileMode, input, length);
+          }
+        }
+        finally {
+          input.close();
+        }
+      }
+      finally {
+        FileUtil.delete(staged);
+        stagedBytes.addAndGet(-length);
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.TCStreamUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Content hashes of the files (by relative path) as they are at some revision of the VCS root path,
+ * recorded while building the patches up to this revision.
+ * An incremental patch starting from the same revision skips the files whose new content has the same hash:
+ * the agent already has exactly these bytes. After the patch the index describes its target revision:
+ * <ul>
+ * <li>if the patch started from the indexed revision, the files not touched by it are still valid;</li>
+ * <li>otherwise only the files written by the patch are known.</li>
+ * </ul>
+ */
+class PatchContentIndex {
+  private static final Logger LOG = Logger.getLogger(PatchContentIndex.class);
+
+  private static final int FORMAT_VERSION = 1;
+
+  @NotNull private final File myFile;
+  @Nullable private final String myFromRevision;
+  @NotNull private final Map<String, String> myHashes = new HashMap<String, String>();
+  @NotNull private final Set<String> myTouched = new HashSet<String>();
+  private boolean myIndexMatchesFrom;
+
+  /**
+   * @param fromRevision null for a full patch
+   */
+  PatchContentIndex(@NotNull final File file, @Nullable final Revision fromRevision) {
+    myFile = file;
+    myFromRevision = fromRevision == null ? null : fromRevision.asString();
+    if (myFromRevision != null) {
+      load();
+    }
+  }
+
+  /**
+   * Records the content of the file to be written to the patch
+   * @param mode the attributes written along with the content, a change of them must be sent as well
+   * @return false if the file is not changed for the agent and must not be written
+   */
+  boolean fileWritten(@NotNull final String relPath, @NotNull final File content, @NotNull final String mode) throws IOException {
+    final String key = normalize(relPath);
+    final String hash = FileContentStore.calcHash(content) + mode;
+    final boolean firstTouch = myTouched.add(key);
+    final String oldHash = myHashes.put(key, hash);
+    if (myIndexMatchesFrom && firstTouch && hash.equals(oldHash)) {
+      LOG.debug("Content of \"" + relPath + "\" is not changed since " + myFromRevision + ", it will not be sent");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * The file is deleted or written without knowing its content
+   */
+  void forget(@NotNull final String relPath) {
+    final String key = normalize(relPath);
+    myTouched.add(key);
+    myHashes.remove(key);
+  }
+
+  void directoryDeleted(@NotNull final String relPath) {
+    final String prefix = normalize(relPath) + File.separator;
+    forget(relPath);
+    for (final String path : new HashSet<String>(myHashes.keySet())) {
+      if (path.startsWith(prefix)) {
+        forget(path);
+      }
+    }
+  }
+
+  /**
+   * Makes the index describe the patch target, errors are logged and ignored
+   */
+  void save(@NotNull final Revision toRevision) {
+    if (!myIndexMatchesFrom) {
+      myHashes.keySet().retainAll(myTouched);
+    }
+    final File dir = myFile.getParentFile();
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+        throw new IOException("Failed to create directory " + dir);
+      }
+      final File tmp = File.createTempFile("index", ".tmp", dir);
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        output.writeInt(FORMAT_VERSION);
+        TCStreamUtil.writeString(output, toRevision.asString());
+        output.writeInt(myHashes.size());
+        for (final Map.Entry<String, String> entry : myHashes.entrySet()) {
+          TCStreamUtil.writeString(output, entry.getKey());
+          TCStreamUtil.writeString(output, entry.getValue());
+        }
+      }
+      finally {
+        output.close();
+      }
+      FileUtil.delete(myFile);
+      if (!tmp.renameTo(myFile)) {
+        FileUtil.delete(tmp);
+      }
+    }
+    catch (final IOException e) {
+      LOG.warn("Failed to save patch content index " + myFile + ": " + e.getLocalizedMessage());
+      FileUtil.delete(myFile);
+    }
+  }
+
+  private void load() {
+    if (!myFile.isFile()) return;
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(myFile)));
+      if (input.readInt() != FORMAT_VERSION) return;
+      if (!TCStreamUtil.readString(input).equals(myFromRevision)) return;
+      final int size = input.readInt();
+      for (int i = 0; i < size; i++) {
+        myHashes.put(TCStreamUtil.readString(input), TCStreamUtil.readString(input));
+      }
+      myIndexMatchesFrom = true;
+    }
+    catch (final IOException e) {
+      LOG.debug("Failed to read patch content index " + myFile + ": " + e.getLocalizedMessage());
+      myHashes.clear();
+    }
+    finally {
+      FileUtil.close(input);
+    }
+  }
+
+  @NotNull
+  private static String normalize(@NotNull final String relPath) {
+    return CCPathElement.normalizeSeparators(relPath);
+  }
+}
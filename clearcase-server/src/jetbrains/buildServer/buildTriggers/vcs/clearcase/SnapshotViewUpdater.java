@@ -0,0 +1,144 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.configSpec.ConfigSpec;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Updates a snapshot view at most once at a time: the callers arriving while an update is running wait for it
+ * instead of starting their own one. The update is skipped if neither the last event under the path of the connection nor
+ * the config spec have changed since the last successful update made for this path. The views of the config specs selecting versions
+ * by labels are always updated: moving or removing a label is a minor event, it does not change the last event under the path.
+ */
+class SnapshotViewUpdater {
+  private static final Logger LOG = Logger.getLogger(SnapshotViewUpdater.class);
+
+  private static final Map<String, SnapshotViewUpdater> ourUpdaters = new ConcurrentHashMap<String, SnapshotViewUpdater>();
+
+  @NotNull private final String myViewPath;
+  @Nullable private FutureTask<Void> myCurrentUpdate;
+  @NotNull private final Map<String, Long> myLastEventIds = new HashMap<String, Long>();
+  @Nullable private ConfigSpec myLastConfigSpec;
+  private boolean myDynamic;
+
+  private SnapshotViewUpdater(@NotNull final String viewPath) {
+    myViewPath = viewPath;
+  }
+
+  @NotNull
+  static SnapshotViewUpdater getInstance(@NotNull final String viewPath) {
+    SnapshotViewUpdater updater = ourUpdaters.get(viewPath);
+    if (updater == null) {
+      synchronized (ourUpdaters) {
+        updater = ourUpdaters.get(viewPath);
+        if (updater == null) {
+          updater = new SnapshotViewUpdater(viewPath);
+          ourUpdaters.put(viewPath, updater);
+        }
+      }
+    }
+    return updater;
+  }
+
+  void update(@NotNull final ClearCaseConnection connection) throws VcsException {
+    final FutureTask<Void> task;
+    final boolean owner;
+    synchronized (this) {
+      if (myDynamic) return;
+      if (myCurrentUpdate != null) {
+        task = myCurrentUpdate;
+        owner = false;
+      }
+      else {
+        task = new FutureTask<Void>(new Callable<Void>() {
+          public Void call() throws Exception {
+            doUpdate(connection);
+            return null;
+          }
+        });
+        myCurrentUpdate = task;
+        owner = true;
+      }
+    }
+
+    if (owner) {
+      try {
+        task.run();
+      }
+      finally {
+        synchronized (this) {
+          myCurrentUpdate = null;
+        }
+      }
+    }
+    else {
+      LOG.debug("Waiting for the update of the view \"" + myViewPath + "\" started by another request");
+    }
+
+    try {
+      task.get();
+    }
+    catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException(e);
+    }
+    catch (final ExecutionException e) {
+      if (e.getCause() instanceof VcsException) throw (VcsException)e.getCause();
+      throw new VcsException(e.getCause());
+    }
+  }
+
+  private void doUpdate(@NotNull final ClearCaseConnection connection) throws VcsException {
+    final boolean always = TeamCityProperties.getBoolean(Constants.TEAMCITY_PROPERTY_VIEW_UPDATE_ALWAYS);
+    final ConfigSpec configSpec = connection.getConfigSpec();
+    final String path = connection.getViewWholePath();
+    final Long lastEventId = always || configSpec.hasLabelBasedVersionSelector() ? null : connection.getLastEventId();
+
+    synchronized (this) {
+      if (!configSpec.equals(myLastConfigSpec)) {
+        myLastEventIds.clear();
+      }
+      if (lastEventId != null && lastEventId.equals(myLastEventIds.get(path))) {
+        LOG.debug("The view path \"" + path + "\" is up to date (last event " + lastEventId + "), skipping the update");
+        return;
+      }
+      myLastEventIds.remove(path);
+    }
+
+    final boolean dynamic = connection.doUpdateCurrentView();
+
+    synchronized (this) {
+      myDynamic = dynamic;
+      myLastConfigSpec = configSpec;
+      if (lastEventId != null) {
+        myLastEventIds.put(path, lastEventId);
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase;
+
+import jetbrains.buildServer.vcs.VcsException;
+
+/**
+ * A processor which can supply a directory subtree itself instead of letting the connection walk it,
+ * e.g. from a checkpoint of an interrupted walk
+ */
+public interface SubtreeVersionProcessor extends VersionProcessor {
+  /**
+   * Called before the directory is walked
+   * @return true if the processor has processed the directory and all its content, the directory is not walked then
+   */
+  boolean processSubtree(final String fileFullPath,
+                         final String relPath,
+                         final String pname,
+                         final String version) throws VcsException;
+
+  /**
+   * Called when the walk of the directory content has finished without errors, before {@link #finishProcessingDirectory()}
+   */
+  void subtreeCompleted(final String relPath) throws VcsException;
+}
@@ -39,6 +39,8 @@ public interface ConfigSpec {
   boolean isUnderLoadRules(String ccViewRoot, String fullFileName) throws IOException, VcsException;
 
   void setViewIsDynamic(boolean viewIsDynamic);
+
+  boolean isViewIsDynamic();
   
   /**
    * @return true if Version Selector of any Rule refers to a Label 
@@ -47,4 +49,17 @@ public interface ConfigSpec {
 
   @NotNull
   SortedSet<String> getBranches();
+
+  /**
+   * @return names of the labels the Version Selectors refer to
+   */
+  @NotNull
+  SortedSet<String> getLabels();
+
+  /**
+   * @return the rules in a normalized form which does not depend on the formatting of the config spec,
+   * equal config specs have the same identity
+   */
+  @NotNull
+  String getIdentity();
 }
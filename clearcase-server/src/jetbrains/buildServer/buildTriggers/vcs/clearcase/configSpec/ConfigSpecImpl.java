@@ -172,6 +172,10 @@ public class ConfigSpecImpl implements ConfigSpec {
     myViewIsDynamic = viewIsDynamic;
   }
 
+  public boolean isViewIsDynamic() {
+    return myViewIsDynamic;
+  }
+
   private boolean doIsUnderLoadRules(final String fullFileName) {
     for (ConfigSpecLoadRule loadRule : myLoadRules) {
       if (loadRule.isUnderLoadRule(fullFileName)) {
@@ -218,4 +222,27 @@ public class ConfigSpecImpl implements ConfigSpec {
     }
     return branches;
   }
+
+  @NotNull
+  public SortedSet<String> getLabels() {
+    final SortedSet<String> labels = new TreeSet<String>();
+    for (final ConfigSpecStandardRule rule : myStandardRules) {
+      if (rule.isLabelBasedVersionSelector()) {
+        labels.add(rule.getVersion());
+      }
+    }
+    return labels;
+  }
+
+  @NotNull
+  public String getIdentity() {
+    final StringBuilder sb = new StringBuilder();
+    for (final ConfigSpecLoadRule rule : myLoadRules) {
+      sb.append("load ").append(rule.getIdentity()).append('\n');
+    }
+    for (final ConfigSpecStandardRule rule : myStandardRules) {
+      sb.append("element ").append(rule.getIdentity()).append('\n');
+    }
+    return sb.toString();
+  }
 }
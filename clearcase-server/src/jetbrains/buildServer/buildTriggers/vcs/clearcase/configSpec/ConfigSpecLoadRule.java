@@ -32,6 +32,13 @@ public class ConfigSpecLoadRule {
     return myRelativePath;
   }
 
+  /**
+   * @see ConfigSpec#getIdentity()
+   */
+  public String getIdentity() {
+    return myFile.getPath();
+  }
+
   public boolean isUnderLoadRule(final String elementPath) {
     final File elementFile = new File(elementPath);
     return FileUtil.isAncestor(elementFile, myFile, false) || FileUtil.isAncestor(myFile, elementFile, false);
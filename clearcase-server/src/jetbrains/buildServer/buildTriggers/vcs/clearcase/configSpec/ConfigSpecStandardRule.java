@@ -375,6 +375,19 @@ public class ConfigSpecStandardRule {
 		return myIsLabelSelector;
 	}
 
+  /**
+   * @return the parts of the rule compared by {@link #equals(Object)}, see {@link ConfigSpec#getIdentity()}
+   */
+  @NotNull
+  public String getIdentity() {
+    return myScopeType.name() + " " + myScopePattern.pattern() + " " + myBranchPattern.pattern() + " " + myVersion;
+  }
+
+  @NotNull
+  public String getVersion() {
+    return myVersion;
+  }
+
   @Nullable
   public String getPrimaryBranch() {
     return myPrimaryBranch;
@@ -18,14 +18,24 @@ package jetbrains.buildServer.buildTriggers.vcs.clearcase.process;
 import com.intellij.execution.ExecutionException;
 import com.intellij.execution.configurations.GeneralCommandLine;
 import java.io.IOException;
+import java.util.*;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ViewPath;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.clearcase.Constants;
 import jetbrains.buildServer.vcs.clearcase.Util;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.TestOnly;
 
 public class ClearCaseInteractiveProcessPool {
+  private static final Logger LOG = Logger.getLogger(ClearCaseInteractiveProcessPool.class);
+
+  /**
+   * The idle processes by the working directory, the most recently released last
+   */
+  @NotNull private static final Map<String, LinkedList<IdleProcess>> ourIdleProcesses = new HashMap<String, LinkedList<IdleProcess>>();
+
   @NotNull private static ClearCaseFacade ourProcessExecutor = new ClearCaseFacade() {
     @NotNull
     public ClearCaseInteractiveProcess createProcess(@NotNull final String workingDirectory, @NotNull final GeneralCommandLine generalCommandLine) throws ExecutionException {
@@ -75,8 +85,122 @@ public class ClearCaseInteractiveProcessPool {
     }
   }
 
+  /**
+   * Like {@link #doWithProcess(String, ProcessComputable)}, but the process is taken from the idle processes of the working directory
+   * and is kept idle afterwards for the next call, so a series of short commands does not start cleartool for every command.
+   * At most {@link Constants#TEAMCITY_PROPERTY_IDLE_PROCESSES_PER_VIEW} processes are kept per working directory, each for
+   * {@link Constants#TEAMCITY_PROPERTY_IDLE_PROCESS_TIMEOUT} seconds. A process whose computation failed is destroyed, its state is unknown.
+   */
+  public static <T> T doWithPooledProcess(@NotNull final String workingDirectory, @NotNull final ProcessComputable<T> computable) throws IOException, VcsException {
+    final ClearCaseInteractiveProcess process = borrowProcess(workingDirectory);
+    boolean succeeded = false;
+    try {
+      final T result = computable.compute(process);
+      succeeded = true;
+      return result;
+    }
+    finally {
+      if (succeeded) {
+        releaseProcess(workingDirectory, process);
+      }
+      else {
+        process.destroy();
+      }
+    }
+  }
+
+  /**
+   * Destroys all the idle processes, e.g. on the server shutdown
+   */
+  public static void destroyIdleProcesses() {
+    final List<ClearCaseInteractiveProcess> processes = new ArrayList<ClearCaseInteractiveProcess>();
+    synchronized (ourIdleProcesses) {
+      for (final LinkedList<IdleProcess> idle : ourIdleProcesses.values()) {
+        for (final IdleProcess process : idle) {
+          processes.add(process.myProcess);
+        }
+      }
+      ourIdleProcesses.clear();
+    }
+    destroy(processes);
+  }
+
   @NotNull
-  private static ClearCaseInteractiveProcess createProcess(@NotNull final String workingDirectory) throws IOException {
+  private static ClearCaseInteractiveProcess borrowProcess(@NotNull final String workingDirectory) throws IOException {
+    final List<ClearCaseInteractiveProcess> expired = new ArrayList<ClearCaseInteractiveProcess>();
+    ClearCaseInteractiveProcess result = null;
+    synchronized (ourIdleProcesses) {
+      collectExpired(expired);
+      final LinkedList<IdleProcess> idle = ourIdleProcesses.get(workingDirectory);
+      if (idle != null) {
+        while (result == null && !idle.isEmpty()) {
+          final ClearCaseInteractiveProcess process = idle.removeLast().myProcess;
+          if (process.isRunning()) {
+            result = process;
+          }
+          else {
+            expired.add(process);
+          }
+        }
+        if (idle.isEmpty()) {
+          ourIdleProcesses.remove(workingDirectory);
+        }
+      }
+    }
+    // destroying waits for cleartool to quit, so it is done outside of the lock
+    destroy(expired);
+    return result != null ? result : createProcess(workingDirectory);
+  }
+
+  private static void releaseProcess(@NotNull final String workingDirectory, @NotNull final ClearCaseInteractiveProcess process) {
+    final int maxIdle = TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_IDLE_PROCESSES_PER_VIEW, 2);
+    final List<ClearCaseInteractiveProcess> expired = new ArrayList<ClearCaseInteractiveProcess>();
+    synchronized (ourIdleProcesses) {
+      collectExpired(expired);
+      LinkedList<IdleProcess> idle = ourIdleProcesses.get(workingDirectory);
+      if (maxIdle > 0 && process.isRunning() && (idle == null || idle.size() < maxIdle)) {
+        if (idle == null) {
+          idle = new LinkedList<IdleProcess>();
+          ourIdleProcesses.put(workingDirectory, idle);
+        }
+        idle.addLast(new IdleProcess(process));
+      }
+      else {
+        expired.add(process);
+      }
+    }
+    destroy(expired);
+  }
+
+  private static void collectExpired(@NotNull final List<ClearCaseInteractiveProcess> expired) {
+    final long releasedBefore = System.currentTimeMillis() - 1000L * TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_IDLE_PROCESS_TIMEOUT, 300);
+    for (final Iterator<LinkedList<IdleProcess>> it = ourIdleProcesses.values().iterator(); it.hasNext(); ) {
+      final LinkedList<IdleProcess> idle = it.next();
+      while (!idle.isEmpty() && idle.getFirst().myReleaseTime < releasedBefore) {
+        expired.add(idle.removeFirst().myProcess);
+      }
+      if (idle.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  private static void destroy(@NotNull final List<ClearCaseInteractiveProcess> processes) {
+    for (final ClearCaseInteractiveProcess process : processes) {
+      try {
+        process.destroy();
+      }
+      catch (final RuntimeException e) {
+        LOG.debug("Failed to destroy an idle cleartool process in " + process.getWorkingDirectory() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Starts a process kept by the caller across several operations, the caller must destroy it
+   */
+  @NotNull
+  public static ClearCaseInteractiveProcess createProcess(@NotNull final String workingDirectory) throws IOException {
     try {
       return (ClearCaseInteractiveProcess) ourProcessExecutor.createProcess(workingDirectory, createCommandLine(workingDirectory, "-status"));
     }
@@ -103,6 +227,15 @@ public class ClearCaseInteractiveProcessPool {
     return new ClearCaseInteractiveProcess(workingDirectory, process);
   }
   
+  private static class IdleProcess {
+    @NotNull private final ClearCaseInteractiveProcess myProcess;
+    private final long myReleaseTime = System.currentTimeMillis();
+
+    private IdleProcess(@NotNull final ClearCaseInteractiveProcess process) {
+      myProcess = process;
+    }
+  }
+
   public static interface ProcessRunnable {
     void run(@NotNull ClearCaseInteractiveProcess process) throws IOException, VcsException;
   }
@@ -16,20 +16,13 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
-class ReadCacheItem {
-  private final String myName;
-  private final String myVersion;
+import java.io.IOException;
 
-  ReadCacheItem(final String name, final String version) {
-    myName = name;
-    myVersion = version;
-  }
-
-  public String getName() {
-    return myName;
-  }
-
-  public String getVersion() {
-    return myVersion;
+/**
+ * The snapshot file is damaged or has an unsupported format, it must be removed and created again
+ */
+class BrokenSnapshotException extends IOException {
+  BrokenSnapshotException(final String message) {
+    super(message);
   }
 }
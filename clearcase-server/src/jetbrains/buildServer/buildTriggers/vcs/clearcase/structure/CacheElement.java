@@ -17,18 +17,21 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
 import com.intellij.openapi.util.Ref;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.*;
-import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.vcs.IncludeRule;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.clearcase.Constants;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class CacheElement {
   private static final Logger LOG = Logger.getLogger(CacheElement.class);
@@ -65,56 +68,160 @@ public class CacheElement {
 
   public void processAllVersions(final VersionProcessor versionProcessor, boolean processRoot, ClearCaseConnection connection) throws VcsException {
     try {
-      if (!myCacheFile.exists()) {
-        CacheElement nearestCache = myOwner.getNearestExistingCache(myVersion, myPath, myIncludeRule, myRoot);
-        if (nearestCache == null) {
-          LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading all versions");
-          loadAllRevisions(myVersion, connection);
-        }
-        else {
-          LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading differences from " + nearestCache.getVersion().asString());
-          loadDifferences(nearestCache, connection);
-        }
+      discardIfLabelsChanged(connection);
+      ensureSnapshot(connection);
+      try {
+        processAllVersionsInternal(versionProcessor, processRoot, connection);
+      }
+      catch (final BrokenSnapshotException e) {
+        LOG.warn("ClearCase cache " + myCacheFile.getPath() + " will be recreated: " + e.getMessage());
+        myOwner.discardSnapshot(myCacheFile);
+        ensureSnapshot(connection);
+        processAllVersionsInternal(versionProcessor, processRoot, connection);
       }
-
-      processAllVersionsInternal(versionProcessor, processRoot, connection);
     }
     catch (final IOException e) {
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " cannot be used: " + e.getMessage(), e);
+      myOwner.discardSnapshot(myCacheFile);
       connection.processAllVersions(myVersion, versionProcessor, processRoot, false);
     }
   }
 
-  private void loadAllRevisions(DateRevision version, ClearCaseConnection connection) throws IOException {
-    //noinspection ResultOfMethodCallIgnored
-    myCacheFile.getParentFile().mkdirs();
-    final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(myCacheFile));
+  /**
+   * Creates the snapshot in advance, so the following {@link #processAllVersions} finds it ready
+   */
+  public void warmUp(final ClearCaseConnection connection) throws VcsException {
+    try {
+      discardIfLabelsChanged(connection);
+      ensureSnapshot(connection);
+    }
+    catch (final IOException e) {
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " cannot be created in advance: " + e.getMessage(), e);
+      myOwner.discardSnapshot(myCacheFile);
+    }
+  }
+
+  /**
+   * @return the number of the elements in this snapshot, or in the nearest older one if this one is not created yet,
+   * -1 if there is no snapshot to count
+   */
+  public long estimateElementCount() {
+    final CacheElement source = myOwner.isSnapshotAvailable(myCacheFile)
+                                ? this
+                                : myOwner.getNearestExistingCache(myVersion, myCacheFile.getParentFile(), myPath, myIncludeRule, myRoot);
+    if (source == null) return -1;
     try {
-      connection.processAllVersions(version, new WriteVersionProcessor(outputStream), true, false);
-      outputStream.close();
-    } catch (Throwable e) {
-      outputStream.close();
-      FileUtil.delete(myCacheFile);
+      return CacheProcessor.readElementCount(source.getCacheFile());
+    }
+    catch (final IOException e) {
+      LOG.debug("ClearCase cache " + source.getCacheFile().getPath() + " cannot be counted: " + e.getMessage());
+    }
+    return -1;
+  }
+
+  /**
+   * Moving a label does not change the version of a label-based config spec, so an existing snapshot of this version
+   * is discarded if a label event happened after the snapshot was checked, it is recreated from an older snapshot
+   */
+  private void discardIfLabelsChanged(final ClearCaseConnection connection) throws IOException, VcsException {
+    final SortedSet<String> labels = connection.getConfigSpec().getLabels();
+    if (labels.isEmpty() || !myOwner.isSnapshotAvailable(myCacheFile)) return;
+    final long checkTime = System.currentTimeMillis();
+    final Long lastCheckTime = myOwner.getLabelsCheckTime(myCacheFile);
+    final DateRevision fromVersion = lastCheckTime == null ? myVersion : Revision.fromDate(new Date(lastCheckTime));
+    if (processLabelEvents(fromVersion, labels, connection, null)) {
+      myOwner.labelsChecked(myCacheFile, checkTime);
     }
+    else {
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " will be recreated: labels were changed");
+      myOwner.discardSnapshot(myCacheFile);
+    }
+  }
+
+  /**
+   * Creates the snapshot if it does not exist yet, the requests for the same snapshot wait for a single computation
+   */
+  private void ensureSnapshot(final ClearCaseConnection connection) throws IOException, VcsException {
+    if (myOwner.isSnapshotAvailable(myCacheFile)) return;
+    myOwner.createSnapshot(myCacheFile, new ClearCaseStructureCache.SnapshotBuilder() {
+      @NotNull
+      public SnapshotData build() throws IOException, VcsException {
+        final CacheElement nearestCache = myOwner.getNearestExistingCache(myVersion, myCacheFile.getParentFile(), myPath, myIncludeRule, myRoot);
+        if (nearestCache != null) {
+          LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading differences from " + nearestCache.getVersion().asString());
+          try {
+            final SnapshotData differences = loadDifferences(nearestCache, connection);
+            if (differences != null) return differences;
+            LOG.debug("ClearCase cache " + myCacheFile.getPath() + " cannot be corrected by the label events");
+          }
+          catch (final IOException e) {
+            LOG.warn("ClearCase cache " + nearestCache.getCacheFile().getPath() + " cannot be used as a base: " + e.getMessage());
+            myOwner.discardSnapshot(nearestCache.getCacheFile());
+          }
+        }
+        LOG.debug("ClearCase cache " + myCacheFile.getPath() + " loading all versions");
+        return loadAllRevisions(myVersion, connection);
+      }
+    });
+  }
 
+  /**
+   * The completed top-level directories are kept as checkpoints of the revision, so a walk failed in the middle
+   * is resumed after them, see {@link CheckpointingVersionProcessor}
+   */
+  @NotNull
+  private CompactSnapshotWriter loadAllRevisions(DateRevision version, ClearCaseConnection connection) throws VcsException {
+    final CompactSnapshotWriter writer = new CompactSnapshotWriter();
+    final CheckpointingVersionProcessor processor =
+      new CheckpointingVersionProcessor(writer, myOwner.getCheckpointDir(myCacheFile), connection.getConfigSpec().getIdentity());
+    connection.processAllVersions(version, processor, true, false);
+    LOG.debug("ClearCase cache " + myCacheFile.getPath() + " walked: " + processor.getReusedCount() + " top-level directories read from checkpoints, " +
+              processor.getWrittenCount() + " checkpoints written");
+    return writer;
   }
 
-  private void loadDifferences(final CacheElement nearestCache, final ClearCaseConnection connection) throws IOException, VcsException {
+  /**
+   * @return the changes against the nearest snapshot, or the full snapshot if the chain of the changes is too long,
+   * null if the nearest snapshot cannot be corrected
+   */
+  @Nullable
+  private SnapshotData loadDifferences(final CacheElement nearestCache, final ClearCaseConnection connection) throws IOException, VcsException {
     final List<ChangedElementInfo> changedElements = loadChanges(nearestCache);
-    
-    final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(myCacheFile));
-    final WriteVersionProcessor writeProcessor = new WriteVersionProcessor(outputStream);
-    try {
-      new CacheProcessor(new WriteCorrectingVersionProcessor(changedElements, writeProcessor), connection, nearestCache.getCacheFile())
-        .processAllRevisions(true);
-    } finally {
-      outputStream.close();
+    if (changedElements == null) return null;
+
+    nearestCache.markAccessed();
+    final int chainLength = DeltaSnapshot.readChainLength(nearestCache.getCacheFile());
+    if (chainLength < TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_STRUCTURE_CACHE_MAX_DELTA_CHAIN, 10)) {
+      final DeltaSnapshot delta = new DeltaSnapshot(nearestCache.getVersion().getDate().getTime(), chainLength + 1);
+      final WriteCorrectingVersionProcessor processor = new WriteCorrectingVersionProcessor(changedElements, new WriteVersionProcessor(delta.getResultSink()), delta);
+      new CacheProcessor(processor, connection, nearestCache.getCacheFile()).processAllRevisions(true);
+      if (!allLabelCorrectionsUsed(processor)) return null;
+      LOG.debug("ClearCase cache " + myCacheFile.getPath() + " holds " + delta.getEditCount() + " changes, chain length " + delta.getChainLength());
+      return delta;
     }
+
+    final CompactSnapshotWriter writer = new CompactSnapshotWriter();
+    final WriteCorrectingVersionProcessor processor = new WriteCorrectingVersionProcessor(changedElements, new WriteVersionProcessor(writer), null);
+    new CacheProcessor(processor, connection, nearestCache.getCacheFile()).processAllRevisions(true);
+    return allLabelCorrectionsUsed(processor) ? writer : null;
+  }
+
+  /**
+   * A file labeled after the nearest snapshot may be missing in it (e.g. it becomes visible only once labeled),
+   * the structure of its directory is not loaded for a label event, so such a snapshot cannot be corrected
+   */
+  private boolean allLabelCorrectionsUsed(@NotNull final WriteCorrectingVersionProcessor processor) {
+    final Set<String> unused = processor.getUnusedLabelCorrections();
+    if (unused.isEmpty()) return true;
+    LOG.debug("ClearCase cache " + myCacheFile.getPath() + ": " + unused.size() + " labeled files are missing in the nearest snapshot, e.g. " + unused.iterator().next());
+    return false;
   }
 
   public File getCacheFile() {
     return myCacheFile;
   }
 
+  @Nullable
   private List<ChangedElementInfo> loadChanges(final CacheElement nearestCache) throws IOException, VcsException {
 /*
     if (myParentSupport.isViewPathIsExactlyCCViewPath(myRoot, myIncludeRule)) {
@@ -144,12 +251,62 @@ public class CacheElement {
 //    }
   }
 
+  @Nullable
   private List<ChangedElementInfo> loadChangesWithConnection(CacheElement nearestCache, ClearCaseConnection tempConnection) throws VcsException, IOException {
     final CollectingChangedFilesProcessor processor = new CollectingChangedFilesProcessor(tempConnection);
     CCParseUtil.processChangedFiles(tempConnection, nearestCache.getVersion(), myVersion, processor);
+    final SortedSet<String> labels = tempConnection.getConfigSpec().getLabels();
+    if (!labels.isEmpty() && !processLabelEvents(nearestCache.getVersion(), labels, tempConnection, processor)) {
+      return null;
+    }
     return processor.getChanges();
   }
 
+  /**
+   * Labels are not versioned, so the snapshot reflects the labels at the time it was created, which is not earlier than
+   * its version. All the label events since the version of the nearest snapshot are applied, an event already
+   * reflected by the snapshot just sets the same version again.
+   * @param processor collects the corrections, null to stop on the first label event
+   * @return false if a label of a directory was changed or a file lost its version, so the nearest snapshot cannot be corrected
+   */
+  private static boolean processLabelEvents(@NotNull final DateRevision fromVersion,
+                                            @NotNull final Set<String> labels,
+                                            @NotNull final ClearCaseConnection connection,
+                                            @Nullable final CollectingChangedFilesProcessor processor) throws IOException, VcsException {
+    final long checkTime = System.currentTimeMillis();
+    final HistoryElementIterator iterator = connection.getMinorEventsIterator(fromVersion.shiftToPast(CCParseUtil.getLookForTheChangesInThePastMinutes()), true);
+    try {
+      while (iterator.hasNext()) {
+        final HistoryElement element = iterator.next();
+        // the same events tell the attribute changes, so this pass spares the attribute check of the view
+        CCParseUtil.invalidateChangedAttributes(connection, element);
+        if (!isLabelEvent(element, labels) || Revision.fromChange(element.getChangeInfo()).beforeOrEquals(fromVersion)) continue;
+        if (!CCPathElement.isInsideView(element.getObjectName(), connection.getViewWholePath())) continue;
+        LOG.debug("Processing label event: " + element.getLogRepresentation());
+        if (processor == null || !processor.processLabelEvent(element)) return false;
+      }
+    }
+    finally {
+      iterator.close();
+    }
+    FileAttributeCache.getInstance().checked(connection.getViewWholePath(), fromVersion.getDate().getTime(), checkTime);
+    return true;
+  }
+
+  /**
+   * The comment of a label event names the label, e.g. 'Created label "REL_1" on "file@@/main/3".'.
+   * An event without a quoted name is taken into account for any label.
+   */
+  private static boolean isLabelEvent(@NotNull final HistoryElement element, @NotNull final Set<String> labels) {
+    if (!"mklabel".equals(element.getOperation()) && !"rmlabel".equals(element.getOperation())) return false;
+    final String comment = element.getComment();
+    if (comment == null || comment.indexOf('"') < 0) return true;
+    for (final String label : labels) {
+      if (comment.contains("\"" + label + "\"")) return true;
+    }
+    return false;
+  }
+
   public DateRevision getVersion() {
     return myVersion;
   }
@@ -157,7 +314,16 @@ public class CacheElement {
   private void processAllVersionsInternal(final VersionProcessor versionProcessor,
                                           final boolean processRoot,
                                           final ClearCaseConnection connection) throws VcsException, IOException {
+    markAccessed();
     new CacheProcessor(versionProcessor, connection, myCacheFile).processAllRevisions(processRoot);
   }
 
+  /**
+   * The modification time of a snapshot is its last access time, see {@link ClearCaseStructureCache#compact()}
+   */
+  private void markAccessed() {
+    //noinspection ResultOfMethodCallIgnored
+    myCacheFile.setLastModified(System.currentTimeMillis());
+  }
+
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCParseUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Full (with versions), relative and IO paths of the current snapshot entry. The paths are kept in builders
+ * which are extended when an entry is pushed and truncated back when it is popped,
+ * so the cost of an entry does not depend on its depth.
+ * The root entry has the empty name, it adds its version to the full path only.
+ */
+class CachePathCursor {
+  @NotNull private final StringBuilder myFullPath = new StringBuilder();
+  @NotNull private final StringBuilder myRelPath = new StringBuilder();
+  @NotNull private final StringBuilder myIOPath = new StringBuilder();
+  @NotNull private int[] myLengths = new int[3 * 32];
+  private int myDepth;
+
+  CachePathCursor(@Nullable final String viewWholePath) {
+    if (viewWholePath != null) {
+      myFullPath.append(viewWholePath);
+      myIOPath.append(viewWholePath);
+    }
+  }
+
+  void push(@NotNull final String name, @NotNull final String version) {
+    if (3 * (myDepth + 1) > myLengths.length) {
+      final int[] lengths = new int[myLengths.length * 2];
+      System.arraycopy(myLengths, 0, lengths, 0, myLengths.length);
+      myLengths = lengths;
+    }
+    myLengths[3 * myDepth] = myFullPath.length();
+    myLengths[3 * myDepth + 1] = myRelPath.length();
+    myLengths[3 * myDepth + 2] = myIOPath.length();
+    myDepth++;
+
+    final boolean root = name.length() == 0;
+    if (!root) {
+      myFullPath.append(File.separatorChar).append(name);
+      myIOPath.append(File.separatorChar).append(name);
+    }
+    myFullPath.append(CCParseUtil.CC_VERSION_SEPARATOR).append(version);
+    if (myRelPath.length() > 0) {
+      myRelPath.append(File.separatorChar);
+    }
+    myRelPath.append(name);
+  }
+
+  void pop() {
+    if (myDepth == 0) {
+      throw new IllegalStateException("No entry to pop");
+    }
+    myDepth--;
+    myFullPath.setLength(myLengths[3 * myDepth]);
+    myRelPath.setLength(myLengths[3 * myDepth + 1]);
+    myIOPath.setLength(myLengths[3 * myDepth + 2]);
+  }
+
+  @NotNull
+  String getFullPath() {
+    return myFullPath.toString();
+  }
+
+  @NotNull
+  String getRelPath() {
+    return myRelPath.toString();
+  }
+
+  @NotNull
+  String getIOPath() {
+    return myIOPath.toString();
+  }
+}
@@ -17,12 +17,12 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
 import java.io.*;
-import java.util.Stack;
-import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCParseUtil;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.SubtreeVersionProcessor;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.VersionProcessor;
 import jetbrains.buildServer.util.TCStreamUtil;
 import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
 
 public class CacheProcessor {
   private final VersionProcessor myVersionProcessor;
@@ -37,9 +37,90 @@ public class CacheProcessor {
   }
 
   public void processAllRevisions(final boolean processRoot) throws IOException, VcsException {
-    final Stack<ReadCacheItem> readDirs = new Stack<ReadCacheItem>();
-    DataInputStream input = new DataInputStream(new FileInputStream(myCacheFile));
-    int index = 0;
+    process(myCacheFile, new EntryHandler(processRoot));
+  }
+
+  /**
+   * @return the snapshot of any format as a full snapshot, a delta snapshot is read with its base
+   */
+  @NotNull
+  static CompactSnapshotWriter readFull(final @NotNull File file) throws IOException, VcsException {
+    final CompactSnapshotWriter writer = new CompactSnapshotWriter();
+    process(file, new CompactSnapshotReader.Visitor() {
+      public void file(@NotNull final String name, @NotNull final String version, final boolean text, final boolean executable) throws VcsException {
+        try {
+          writer.writeFile(version, name, text, executable);
+        }
+        catch (final IOException e) {
+          throw new VcsException(e);
+        }
+      }
+
+      public void dirOpen(@NotNull final String name, @NotNull final String version) throws VcsException {
+        try {
+          writer.writeDirOpen(version, name);
+        }
+        catch (final IOException e) {
+          throw new VcsException(e);
+        }
+      }
+
+      public void dirClose() throws VcsException {
+        try {
+          writer.writeDirClose();
+        }
+        catch (final IOException e) {
+          throw new VcsException(e);
+        }
+      }
+    });
+    return writer;
+  }
+
+  /**
+   * @return the number of the files and directories in the snapshot stored at write time, -1 for the old format which does not store it
+   */
+  static long readElementCount(final @NotNull File file) throws IOException {
+    final int magic = readMagic(file);
+    if (magic == CompactSnapshotWriter.MAGIC) return CompactSnapshotReader.readElementCount(file);
+    if (magic == DeltaSnapshot.MAGIC) return DeltaSnapshot.readElementCount(file);
+    return -1;
+  }
+
+  /**
+   * Reads a snapshot of any format, a delta snapshot is read as its base with the changes applied
+   */
+  private static void process(final @NotNull File file, final @NotNull CompactSnapshotReader.Visitor visitor) throws IOException, VcsException {
+    final int magic = readMagic(file);
+    if (magic == CompactSnapshotWriter.MAGIC) {
+      new CompactSnapshotReader(file).processAll(visitor);
+    }
+    else if (magic == DeltaSnapshot.MAGIC) {
+      final DeltaSnapshot delta = DeltaSnapshot.read(file);
+      final File baseFile = delta.getBaseFile(file);
+      if (!baseFile.isFile()) {
+        throw new BrokenSnapshotException("Base of structure cache snapshot " + file + " is missing");
+      }
+      process(baseFile, delta.apply(visitor));
+    }
+    else {
+      processOldFormat(file, visitor);
+    }
+  }
+
+  private static int readMagic(final @NotNull File file) throws IOException {
+    final DataInputStream input = new DataInputStream(new FileInputStream(file));
+    try {
+      return input.readInt();
+    } catch (EOFException e) {
+      return 0;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static void processOldFormat(final @NotNull File file, final @NotNull CompactSnapshotReader.Visitor handler) throws IOException, VcsException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
     try {
       while (true) {
         byte type;
@@ -63,90 +144,85 @@ public class CacheProcessor {
               text = mode.contains("t");
               executable = mode.contains("x");
             }
-            
-            readDirs.push(new ReadCacheItem(name, version));
 
-
-
-            myVersionProcessor.processFile(createFullPath(readDirs, myConnection), createRelPath(readDirs), createIOPath(readDirs, myConnection), version, myConnection,
-                                           text, executable);
-            readDirs.pop();
+            handler.file(name, version, text, executable);
           }
           else if (type == CacheElement.DIR_OPEN_TYPE) {
             String name = TCStreamUtil.readString(input);
             String version = TCStreamUtil.readString(input);
-            readDirs.push(new ReadCacheItem(name, version));
-            if (index > 0 || processRoot) {
-              myVersionProcessor.processDirectory(createFullPath(readDirs, myConnection), createRelPath(readDirs), createIOPath(readDirs, myConnection), version, myConnection);
-            }
+            handler.dirOpen(name, version);
           }
           else if (type == CacheElement.DIR_CLOSE_TYPE){ 
-            readDirs.pop();
-            myVersionProcessor.finishProcessingDirectory();
+            handler.dirClose();
           }
           else {
             throw new IOException("Unexpected type "+ type);
           }
-        index++;
       }
     } finally {
       input.close();
     }
     
   }
-  
-  private String createIOPath(final Stack<ReadCacheItem> readDirs, final ClearCaseConnection connection) {
-    StringBuilder result = new StringBuilder();
-    if (connection != null) {
-      result.append(connection.getViewWholePath());
+
+  /**
+   * Passes the entries to the version processor, a {@link SubtreeVersionProcessor} may take over a directory
+   * like in the walk of {@link ClearCaseConnection}, the entries under it are skipped then
+   */
+  private class EntryHandler implements CompactSnapshotReader.Visitor {
+    private final CachePathCursor myCursor = new CachePathCursor(myConnection == null ? null : myConnection.getViewWholePath());
+    private final SubtreeVersionProcessor mySubtreeProcessor =
+      myVersionProcessor instanceof SubtreeVersionProcessor ? (SubtreeVersionProcessor)myVersionProcessor : null;
+    private final boolean myProcessRoot;
+    private boolean myFirstEntry = true;
+    private int mySkippedDepth;
+
+    private EntryHandler(final boolean processRoot) {
+      myProcessRoot = processRoot;
     }
-    for (ReadCacheItem readDir : readDirs) {
-      String name = readDir.getName();
-      if (!isRoot(name)) {
-        result.append(File.separatorChar);
-        result.append(name);
+
+    public void file(@NotNull final String name, @NotNull final String version, final boolean text, final boolean executable) throws VcsException {
+      myFirstEntry = false;
+      if (mySkippedDepth > 0) return;
+      myCursor.push(name, version);
+      try {
+        myVersionProcessor.processFile(myCursor.getFullPath(), myCursor.getRelPath(), myCursor.getIOPath(), version, myConnection, text, executable);
+      }
+      finally {
+        myCursor.pop();
       }
     }
-    return result.toString();    
-  }
 
-  private boolean isRoot(final String name) {
-    return "".equals(name);
-  }
-
-  private String createRelPath(final Stack<ReadCacheItem> readDirs) {
-    StringBuilder result = new StringBuilder();
-    for (ReadCacheItem readDir : readDirs) {
-      if (result.length() > 0) {
-        result.append(File.separatorChar);
+    public void dirOpen(@NotNull final String name, @NotNull final String version) throws VcsException {
+      if (mySkippedDepth > 0) {
+        mySkippedDepth++;
+        return;
+      }
+      myCursor.push(name, version);
+      if (!myFirstEntry && mySubtreeProcessor != null &&
+          mySubtreeProcessor.processSubtree(myCursor.getFullPath(), myCursor.getRelPath(), myCursor.getIOPath(), version)) {
+        myCursor.pop();
+        mySkippedDepth = 1;
+        return;
       }
-      String name = readDir.getName();
-      if (!isRoot(name)) {
-        result.append(name);
+      if (!myFirstEntry || myProcessRoot) {
+        myVersionProcessor.processDirectory(myCursor.getFullPath(), myCursor.getRelPath(), myCursor.getIOPath(), version, myConnection);
       }
+      myFirstEntry = false;
     }
-    return result.toString();
-    
-  }
 
-  private String createFullPath(final Stack<ReadCacheItem> readDirs, final ClearCaseConnection connection) {
-    StringBuilder result = new StringBuilder();
-    if (connection != null) {
-      result.append(connection.getViewWholePath());
-    }
-    for (ReadCacheItem readDir : readDirs) {
-      if (!isRoot(readDir.getName())) {
-        result.append(File.separatorChar);
-        result.append(readDir.getName());
-        result.append(CCParseUtil.CC_VERSION_SEPARATOR);
-        result.append(readDir.getVersion());
+    public void dirClose() throws VcsException {
+      myFirstEntry = false;
+      if (mySkippedDepth > 0) {
+        mySkippedDepth--;
+        return;
       }
-      else {
-        result.append(CCParseUtil.CC_VERSION_SEPARATOR);
-        result.append(readDir.getVersion());        
+      final String relPath = myCursor.getRelPath();
+      myCursor.pop();
+      if (mySubtreeProcessor != null && relPath.length() > 0) {
+        mySubtreeProcessor.subtreeCompleted(relPath);
       }
+      myVersionProcessor.finishProcessingDirectory();
     }
-    return result.toString();
   }
-  
 }
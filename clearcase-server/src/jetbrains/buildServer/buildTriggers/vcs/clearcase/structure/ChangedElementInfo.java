@@ -29,16 +29,28 @@ class ChangedElementInfo {
   final String myRelativePath;
   final String myVersion;
   final ChangeType myChangeType;
+  /**
+   * The version change comes from a label event, the element may be missing in the snapshot being corrected
+   */
+  final boolean myLabelCorrection;
   
   private final List<ChangedElementInfo> myAddedElements = new ArrayList<ChangedElementInfo>();
 
   ChangedElementInfo(final String relativePath,
                      final String version,
                      final ChangeType changeType) {
+    this(relativePath, version, changeType, false);
+  }
+
+  ChangedElementInfo(final String relativePath,
+                     final String version,
+                     final ChangeType changeType,
+                     final boolean labelCorrection) {
 
     myRelativePath = ".".equals(relativePath) ? "" : relativePath;
     myVersion = version;
     myChangeType = changeType;
+    myLabelCorrection = labelCorrection;
   }
   
   public void addAddedElement(ChangedElementInfo el) {
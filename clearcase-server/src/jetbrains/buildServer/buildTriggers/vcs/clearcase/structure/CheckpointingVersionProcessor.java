@@ -0,0 +1,185 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.io.IOException;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.CCParseUtil;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.SubtreeVersionProcessor;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.Hash;
+import jetbrains.buildServer.vcs.VcsException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes the snapshot of a full walk and stores every completed top-level directory as a checkpoint in the compact format.
+ * A walk of the same revision started after a failure, or by another snapshot of the same revision and config spec, reads
+ * the completed directories from the checkpoints instead of walking them again.
+ * A checkpoint is named by the config spec, the path and the version of its directory, the checkpoint directory belongs to the revision.
+ */
+class CheckpointingVersionProcessor extends WriteVersionProcessor implements SubtreeVersionProcessor {
+  private static final Logger LOG = Logger.getLogger(CheckpointingVersionProcessor.class);
+
+  @NotNull private final File myCheckpointDir;
+  @NotNull private final String myConfigSpecIdentity;
+  @Nullable private CompactSnapshotWriter myPart;
+  @Nullable private File myPartFile;
+  private int myPartDepth;
+  private boolean myPartCompleted;
+  private int myReusedCount;
+  private int myWrittenCount;
+
+  CheckpointingVersionProcessor(@NotNull final SnapshotSink writer, @NotNull final File checkpointDir, @NotNull final String configSpecIdentity) {
+    super(writer);
+    myCheckpointDir = checkpointDir;
+    myConfigSpecIdentity = configSpecIdentity;
+  }
+
+  public boolean processSubtree(final String fileFullPath, final String relPath, final String pname, final String version) throws VcsException {
+    if (myPart != null || !isTopLevel(relPath)) return false;
+    final File checkpoint = getCheckpointFile(pname, version);
+    if (!checkpoint.isFile()) return false;
+
+    final CompactSnapshotReader reader;
+    try {
+      reader = new CompactSnapshotReader(checkpoint);
+    }
+    catch (final IOException e) {
+      LOG.debug("Checkpoint " + checkpoint + " cannot be used: " + e.getMessage());
+      FileUtil.delete(checkpoint);
+      return false;
+    }
+    try {
+      // the reader has checked the file, so a failure here is unexpected, the snapshot being written cannot be trusted then
+      reader.processAll(new CompactSnapshotReader.Visitor() {
+        public void file(@NotNull final String name, @NotNull final String version, final boolean text, final boolean executable) throws VcsException {
+          writeFile(version, name, text, executable);
+        }
+
+        public void dirOpen(@NotNull final String name, @NotNull final String version) throws VcsException {
+          writeDirOpen(version, name);
+        }
+
+        public void dirClose() throws VcsException {
+          writeDirClose();
+        }
+      });
+    }
+    catch (final IOException e) {
+      FileUtil.delete(checkpoint);
+      throw new VcsException(e);
+    }
+    myReusedCount++;
+    return true;
+  }
+
+  public void subtreeCompleted(final String relPath) {
+    if (myPart != null && myPartDepth == 1) {
+      myPartCompleted = true;
+    }
+  }
+
+  @Override
+  public void processFile(final String fileFullPath,
+                          final String relPath,
+                          final String pname,
+                          final String version,
+                          final ClearCaseConnection clearCaseConnection,
+                          final boolean text,
+                          final boolean executable) throws VcsException {
+    super.processFile(fileFullPath, relPath, pname, version, clearCaseConnection, text, executable);
+    if (myPart != null) {
+      try {
+        myPart.writeFile(version, new File(relPath).getName(), text, executable);
+      }
+      catch (final IOException e) {
+        throw new VcsException(e);
+      }
+    }
+  }
+
+  @Override
+  public void processDirectory(final String fileFullPath,
+                               final String relPath,
+                               final String pname,
+                               final String version,
+                               final ClearCaseConnection clearCaseConnection) throws VcsException {
+    super.processDirectory(fileFullPath, relPath, pname, version, clearCaseConnection);
+    if (myPart == null) {
+      if (!isTopLevel(relPath)) return;
+      myPart = new CompactSnapshotWriter();
+      myPartFile = getCheckpointFile(pname, version);
+      myPartDepth = 0;
+      myPartCompleted = false;
+    }
+    try {
+      myPart.writeDirOpen(version, new File(relPath).getName());
+    }
+    catch (final IOException e) {
+      throw new VcsException(e);
+    }
+    myPartDepth++;
+  }
+
+  @Override
+  public void finishProcessingDirectory() throws VcsException {
+    super.finishProcessingDirectory();
+    if (myPart == null) return;
+    try {
+      myPart.writeDirClose();
+    }
+    catch (final IOException e) {
+      throw new VcsException(e);
+    }
+    if (--myPartDepth > 0) return;
+
+    final CompactSnapshotWriter part = myPart;
+    final File partFile = myPartFile;
+    myPart = null;
+    myPartFile = null;
+    if (!myPartCompleted || partFile == null) return;
+    try {
+      if (myCheckpointDir.isDirectory() || myCheckpointDir.mkdirs()) {
+        part.writeTo(partFile);
+        myWrittenCount++;
+      }
+    }
+    catch (final IOException e) {
+      LOG.debug("Failed to write checkpoint " + partFile + ": " + e.getMessage());
+    }
+  }
+
+  int getReusedCount() {
+    return myReusedCount;
+  }
+
+  int getWrittenCount() {
+    return myWrittenCount;
+  }
+
+  @NotNull
+  private File getCheckpointFile(@NotNull final String pname, @NotNull final String version) {
+    return new File(myCheckpointDir, String.valueOf(Hash.calc(myConfigSpecIdentity + pname + CCParseUtil.CC_VERSION_SEPARATOR + version)));
+  }
+
+  private static boolean isTopLevel(@Nullable final String relPath) {
+    return relPath != null && relPath.length() > 0 && relPath.indexOf(File.separatorChar) < 0 && relPath.indexOf('/') < 0;
+  }
+}
@@ -17,30 +17,63 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
 import java.io.File;
-import java.util.Date;
-import java.util.List;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jetbrains.buildServer.BuildAgent;
 import jetbrains.buildServer.BuildType;
+import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseSupport;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.DateRevision;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.Revision;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.cleanup.AfterBuildsCleanupExtension;
 import jetbrains.buildServer.serverSide.cleanup.CleanupProcessState;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.Hash;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import jetbrains.buildServer.vcs.IncludeRule;
+import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.clearcase.Constants;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 
 public class ClearCaseStructureCache {
+  private static final Logger LOG = Logger.getLogger(ClearCaseStructureCache.class);
+  private static final long STALE_TEMP_FILE_AGE = 60 * 60 * 1000L;
+  private static final int MAX_SCHEDULED_WARM_UPS = 16;
+  private static final long STALE_CHECKPOINT_AGE = 24 * 60 * 60 * 1000L;
+  private static final String CHECKPOINTS_DIR = "checkpoints";
+  private static final String LABEL_JOURNALS_DIR = "labels";
+  private static final String SHARED_DIR = "shared";
+  private static final String REFERENCES_DIR = "refs";
+  private static final String LABELS_CHECK_SUFFIX = ".labels";
+
   private final @NotNull File myBaseDir;
   private final @NotNull ClearCaseSupport myParentSupport;
+  /**
+   * Timestamps of the snapshots available in every cache directory (root + path), loaded from the disk on the first access
+   */
+  private final @NotNull ConcurrentMap<File, NavigableSet<Long>> mySnapshots = new ConcurrentHashMap<File, NavigableSet<Long>>();
+  private final @NotNull ExecutorService myMaintenanceExecutor = ExecutorsFactory.newFixedExecutor("ClearCase structure cache maintenance", 1);
+  private final @NotNull AtomicBoolean myCompactionScheduled = new AtomicBoolean();
+  private final @NotNull ConcurrentMap<File, FutureTask<Void>> mySnapshotsInProgress = new ConcurrentHashMap<File, FutureTask<Void>>();
+  private final @NotNull ConcurrentMap<File, Long> myLabelsCheckTimes = new ConcurrentHashMap<File, Long>();
+  private final @NotNull ExecutorService myWarmUpExecutor = ExecutorsFactory.newFixedExecutor("ClearCase structure cache warm-up", getWarmUpThreads());
+  private final @NotNull Set<String> myWarmUpsScheduled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  /**
+   * Guards the references of the shared directories, so the compaction never removes a directory while a root is referencing it
+   */
+  private final @NotNull Object myReferencesLock = new Object();
+  private volatile @Nullable SBuildServer myServer;
 
   public ClearCaseStructureCache(final @NotNull File baseDir, final @NotNull ClearCaseSupport support) {
     myBaseDir = baseDir;
@@ -48,9 +81,16 @@ public class ClearCaseStructureCache {
   }
 
   public void register(final @NotNull SBuildServer server, final @NotNull EventDispatcher<BuildServerListener> dispatcher) {
+    myServer = server;
     server.registerExtension(AfterBuildsCleanupExtension.class, ClearCaseStructureCache.class.getName(), new ClearcaseCacheGeneralDataCleaner());
 
     dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        myMaintenanceExecutor.shutdownNow();
+        myWarmUpExecutor.shutdownNow();
+      }
+
       @Override
       public void sourcesVersionReleased(@NotNull final BuildType configuration) {
         doSourcesVersionReleased(configuration);
@@ -79,109 +119,584 @@ public class ClearCaseStructureCache {
   }
 
   @Nullable
-  public CacheElement getNearestExistingCache(final @NotNull DateRevision version, final @NotNull String path, final @NotNull IncludeRule includeRule, final @NotNull VcsRoot vcsRoot) {
-    File baseDir = createCacheBaseDir(path, vcsRoot);
-    File[] cacheFiles = baseDir.listFiles();
-    CacheElement result = null;
-    if (cacheFiles != null) {
-      for (File cacheFile : cacheFiles) {
-        String fileName = cacheFile.getName();
-        try {
-          long currentCacheTime = Long.parseLong(fileName);
-          if (currentCacheTime <= version.getDate().getTime()) {
-            if (result == null || result.getVersion().getDate().getTime() < currentCacheTime) {
-              result = getCache(Revision.fromDate(new Date(currentCacheTime)), path, includeRule, vcsRoot);
-            }
+  public CacheElement getNearestExistingCache(final @NotNull DateRevision version,
+                                              final @NotNull File pathDir,
+                                              final @NotNull String path,
+                                              final @NotNull IncludeRule includeRule,
+                                              final @NotNull VcsRoot vcsRoot) {
+    final Long nearest = getSnapshots(pathDir).floor(version.getDate().getTime());
+    if (nearest == null) return null;
+    return new CacheElement(Revision.fromDate(new Date(nearest)), new File(pathDir, String.valueOf(nearest)), this, path, includeRule, myParentSupport, vcsRoot);
+  }
+
+  boolean isSnapshotAvailable(final @NotNull File cacheFile) {
+    final Long time = parseTime(cacheFile);
+    return time != null && getSnapshots(cacheFile.getParentFile()).contains(time);
+  }
+
+  void snapshotWritten(final @NotNull File cacheFile) {
+    final Long time = parseTime(cacheFile);
+    if (time != null) {
+      getSnapshots(cacheFile.getParentFile()).add(time);
+    }
+  }
+
+  void snapshotRemoved(final @NotNull File cacheFile) {
+    myLabelsCheckTimes.remove(cacheFile);
+    final Long time = parseTime(cacheFile);
+    final NavigableSet<Long> snapshots = mySnapshots.get(cacheFile.getParentFile());
+    if (time != null && snapshots != null) {
+      snapshots.remove(time);
+    }
+  }
+
+  /**
+   * The time is kept in the file next to the snapshot, so it survives the server restart
+   * @return the time since which the snapshot may miss label events, null if it is not known
+   */
+  @Nullable
+  Long getLabelsCheckTime(final @NotNull File cacheFile) {
+    final Long known = myLabelsCheckTimes.get(cacheFile);
+    if (known != null) return known;
+    final File file = getLabelsCheckFile(cacheFile);
+    if (!file.isFile()) return null;
+    try {
+      final long time = Long.parseLong(FileUtil.readText(file, "UTF-8").trim());
+      myLabelsCheckTimes.putIfAbsent(cacheFile, time);
+      return time;
+    }
+    catch (final IOException e) {
+      LOG.debug("Failed to read " + file + ": " + e.getMessage());
+    }
+    catch (final NumberFormatException e) {
+      LOG.debug("Failed to read " + file + ": " + e.getMessage());
+    }
+    return null;
+  }
+
+  void labelsChecked(final @NotNull File cacheFile, final long time) {
+    myLabelsCheckTimes.put(cacheFile, time);
+    final File file = getLabelsCheckFile(cacheFile);
+    try {
+      FileUtil.writeFile(file, String.valueOf(time), "UTF-8");
+    }
+    catch (final IOException e) {
+      LOG.debug("Failed to write " + file + ": " + e.getMessage());
+      FileUtil.delete(file);
+    }
+  }
+
+  @NotNull
+  private static File getLabelsCheckFile(final @NotNull File cacheFile) {
+    return new File(cacheFile.getPath() + LABELS_CHECK_SUFFIX);
+  }
+
+  /**
+   * Removes a snapshot which cannot be read or is outdated, it will be created again by the next request.
+   * The deltas stored against the snapshot are rewritten as full snapshots first, so they do not break.
+   */
+  void discardSnapshot(final @NotNull File cacheFile) {
+    detachDependents(cacheFile);
+    snapshotRemoved(cacheFile);
+    FileUtil.delete(cacheFile);
+    FileUtil.delete(getLabelsCheckFile(cacheFile));
+  }
+
+  /**
+   * A delta that cannot be rewritten (e.g. its base is damaged) is discarded as well
+   */
+  private void detachDependents(final @NotNull File cacheFile) {
+    final Long time = parseTime(cacheFile);
+    if (time == null) return;
+    for (File snapshot : listSnapshots(cacheFile.getParentFile())) {
+      if (!time.equals(DeltaSnapshot.readBaseTime(snapshot))) continue;
+      try {
+        CacheProcessor.readFull(snapshot).writeTo(snapshot);
+        LOG.debug("ClearCase cache " + snapshot.getPath() + " is rewritten as a full snapshot, its base " + cacheFile.getName() + " is removed");
+      }
+      catch (final IOException e) {
+        LOG.warn("ClearCase cache " + snapshot.getPath() + " cannot be rewritten without its base and will be recreated: " + e.getMessage());
+        discardSnapshot(snapshot);
+      }
+      catch (final VcsException e) {
+        LOG.warn("ClearCase cache " + snapshot.getPath() + " cannot be rewritten without its base and will be recreated: " + e.getMessage());
+        discardSnapshot(snapshot);
+      }
+    }
+  }
+
+  /**
+   * @return the journal of the labeling of the root, it is kept while the labeling is retried and removed by the compaction once stale
+   */
+  @Nullable
+  public File getLabelJournalFile(final @NotNull VcsRoot root, final @NotNull String label, final @NotNull String version) {
+    final File cacheDir = getCacheDir(root, true);
+    if (cacheDir == null) return null;
+    return new File(new File(cacheDir, LABEL_JOURNALS_DIR), String.valueOf(Hash.calc(label + "\n" + version)));
+  }
+
+  /**
+   * @return the directory of the full walk checkpoints of the snapshot revision, shared by all the snapshots of the revision
+   */
+  @NotNull
+  File getCheckpointDir(final @NotNull File cacheFile) {
+    return new File(new File(cacheFile.getParentFile().getParentFile(), CHECKPOINTS_DIR), cacheFile.getName());
+  }
+
+  interface SnapshotBuilder {
+    @NotNull
+    SnapshotData build() throws IOException, VcsException;
+  }
+
+  /**
+   * Builds the snapshot and writes it to the cache file. If the same snapshot is being built by another request,
+   * waits for that computation and shares its result instead of walking the view once more.
+   */
+  void createSnapshot(final @NotNull File cacheFile, final @NotNull SnapshotBuilder builder) throws IOException, VcsException {
+    final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+      public Void call() throws Exception {
+        if (isSnapshotAvailable(cacheFile)) return null;
+        final long startTime = System.currentTimeMillis();
+        builder.build().writeTo(cacheFile);
+        snapshotWritten(cacheFile);
+        labelsChecked(cacheFile, startTime);
+        return null;
+      }
+    });
+    final FutureTask<Void> running = mySnapshotsInProgress.putIfAbsent(cacheFile, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        mySnapshotsInProgress.remove(cacheFile, task);
+      }
+    } else {
+      LOG.debug("Waiting for ClearCase cache " + cacheFile.getPath() + " created by another request");
+    }
+
+    try {
+      (running == null ? task : running).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof VcsException) throw (VcsException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new VcsException(cause);
+    }
+  }
+
+  @NotNull
+  private NavigableSet<Long> getSnapshots(final @NotNull File baseDir) {
+    NavigableSet<Long> result = mySnapshots.get(baseDir);
+    if (result == null) {
+      result = new ConcurrentSkipListSet<Long>();
+      final File[] cacheFiles = baseDir.listFiles();
+      if (cacheFiles != null) {
+        for (File cacheFile : cacheFiles) {
+          final Long time = parseTime(cacheFile);
+          if (time != null && cacheFile.isFile()) {
+            result.add(time);
           }
-        } catch (NumberFormatException e) {
-          //ignore
         }
       }
+      final NavigableSet<Long> existing = mySnapshots.putIfAbsent(baseDir, result);
+      if (existing != null) {
+        result = existing;
+      }
     }
     return result;
   }
 
   @Nullable
-  public CacheElement getCache(@NotNull final DateRevision version, @NotNull final String path, @NotNull final IncludeRule includeRule, @NotNull final VcsRoot root) {
-    final File cacheFile = createCacheFile(version.getDate(), path, root);
-    if (cacheFile == null) return null;
-    return new CacheElement(version, cacheFile, this, path, includeRule, myParentSupport, root);
+  private static Long parseTime(final @NotNull File cacheFile) {
+    try {
+      return Long.parseLong(cacheFile.getName());
+    } catch (NumberFormatException e) {
+      return null;
+    }
   }
 
+  /**
+   * @param connection the connection of the view path of the snapshot, it defines the snapshot identity, see {@link #getSnapshotKey}
+   */
   @Nullable
-  private File createCacheFile(final @NotNull Date version, final @NotNull String path, final @NotNull VcsRoot root) {
-    return new File(createCacheBaseDir(path, root), String.valueOf(version.getTime()));
+  public CacheElement getCache(@NotNull final DateRevision version, @NotNull final ClearCaseConnection connection, @NotNull final VcsRoot root) {
+    final File pathDir = getSharedPathDir(getSnapshotKey(connection), root);
+    if (pathDir == null) return null;
+    final File cacheFile = new File(pathDir, String.valueOf(version.getDate().getTime()));
+    return new CacheElement(version, cacheFile, this, connection.getViewWholePath(), IncludeRule.createDefaultInstance(), myParentSupport, root);
+  }
+
+  /**
+   * The snapshots depend on the view path (it includes the include rule path), the config spec and the "lshistory" options
+   * the deltas are loaded with, so the roots having all of them equal (e.g. copies of a root) share the snapshots
+   */
+  @NotNull
+  private static String getSnapshotKey(@NotNull final ClearCaseConnection connection) {
+    return connection.getViewWholePath() + "\n" + connection.getLSHistoryOptions() + "\n" + connection.getConfigSpec().getIdentity();
   }
 
+  /**
+   * Every root using the shared directory holds a reference to it, the directory is removed when the last reference is released
+   */
   @Nullable
-  private File createCacheBaseDir(final @NotNull String path, final @NotNull VcsRoot vcsRoot) {
-    return new File(getCacheDir(vcsRoot), String.valueOf(Hash.calc(path)));
+  private File getSharedPathDir(@NotNull final String snapshotKey, @NotNull final VcsRoot root) {
+    final File pathDir = new File(new File(myBaseDir, SHARED_DIR), String.valueOf(Hash.calc(snapshotKey)));
+    final File reference = new File(new File(pathDir, REFERENCES_DIR), String.valueOf(root.getId()));
+    synchronized (myReferencesLock) {
+      if (reference.isFile()) return pathDir;
+      try {
+        final File referencesDir = reference.getParentFile();
+        if ((referencesDir.isDirectory() || referencesDir.mkdirs()) && (reference.createNewFile() || reference.isFile())) return pathDir;
+      }
+      catch (final IOException e) {
+        LOG.debug("Failed to reference ClearCase structure cache " + pathDir + ": " + e.getMessage());
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Releases the references of the root, the shared directories not referenced by other roots are removed
+   */
+  private void releaseSharedPathDirs(@NotNull final VcsRoot root) {
+    final File[] pathDirs = new File(myBaseDir, SHARED_DIR).listFiles();
+    if (pathDirs == null) return;
+    for (File pathDir : pathDirs) {
+      if (parseTime(pathDir) == null) continue;
+      synchronized (myReferencesLock) {
+        FileUtil.delete(new File(new File(pathDir, REFERENCES_DIR), String.valueOf(root.getId())));
+        if (!isReferenced(pathDir)) {
+          FileUtil.delete(pathDir);
+          mySnapshots.remove(pathDir);
+        }
+      }
+    }
+  }
+
+  private static boolean isReferenced(@NotNull final File pathDir) {
+    final String[] references = new File(pathDir, REFERENCES_DIR).list();
+    return references != null && references.length > 0;
   }
 
+  /**
+   * Removes the references of the roots the server does not know any more, e.g. deleted while the server was down.
+   * Must be called under {@link #myReferencesLock}.
+   */
+  private void releaseUnknownReferences(@NotNull final File pathDir) {
+    final SBuildServer server = myServer;
+    if (server == null) return;
+    final File[] references = new File(pathDir, REFERENCES_DIR).listFiles();
+    if (references == null) return;
+    for (File reference : references) {
+      if (!isKnownRoot(server, reference.getName())) {
+        LOG.debug("Releasing reference of removed VCS root " + reference.getName() + " to ClearCase structure cache " + pathDir);
+        FileUtil.delete(reference);
+      }
+    }
+  }
+
+  private static boolean isKnownRoot(@NotNull final SBuildServer server, @NotNull final String rootId) {
+    try {
+      return server.getVcsManager().findRootById(Long.parseLong(rootId)) != null;
+    }
+    catch (final NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Schedules the creation of the snapshot of the version in background with the lowest thread priority.
+   * A warm-up is skipped if the same one is already scheduled or too many of them are waiting.
+   */
+  public void warmUp(@NotNull final DateRevision version, @NotNull final VcsRoot root, @NotNull final IncludeRule includeRule) {
+    final int threads = TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_STRUCTURE_CACHE_WARM_UP_THREADS, 1);
+    if (threads <= 0 || myWarmUpsScheduled.size() >= MAX_SCHEDULED_WARM_UPS) return;
+    final String key = root.getId() + ":" + includeRule.getFrom() + ":" + version.asString();
+    if (!myWarmUpsScheduled.add(key)) return;
+    try {
+      myWarmUpExecutor.submit(new Runnable() {
+        public void run() {
+          final Thread thread = Thread.currentThread();
+          final int priority = thread.getPriority();
+          thread.setPriority(Thread.MIN_PRIORITY);
+          try {
+            doWarmUp(version, root, includeRule);
+          } catch (Throwable e) {
+            LOG.debug("Failed to warm up ClearCase structure cache for " + root.describe(false) + ", version " + version.asString() + ": " + e.getLocalizedMessage(), e);
+          } finally {
+            thread.setPriority(priority);
+            myWarmUpsScheduled.remove(key);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      myWarmUpsScheduled.remove(key); // the server is shutting down
+    }
+  }
+
+  private void doWarmUp(@NotNull final DateRevision version, @NotNull final VcsRoot root, @NotNull final IncludeRule includeRule) throws VcsException, IOException {
+    myParentSupport.withReadOnlyConnection(root, includeRule, new ClearCaseSupport.ConnectionProcessor() {
+      public void process(@NotNull final ClearCaseConnection connection) throws VcsException {
+        if (!ClearCaseSupport.isStructureCacheUsed(connection)) return;
+        final CacheElement cache = getCache(version, connection, root);
+        if (cache != null) {
+          cache.warmUp(connection);
+        }
+      }
+    });
+  }
+
+  private static int getWarmUpThreads() {
+    return Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_STRUCTURE_CACHE_WARM_UP_THREADS, 1));
+  }
+
+  /**
+   * Schedules {@link #compact()} in background, does nothing if it is already scheduled
+   */
   public void cleanup() {
-    doCleanup(true);
+    if (!myCompactionScheduled.compareAndSet(false, true)) return;
+    try {
+      myMaintenanceExecutor.submit(new Runnable() {
+        public void run() {
+          myCompactionScheduled.set(false);
+          try {
+            compact();
+          } catch (Throwable e) {
+            LOG.warn("Failed to compact ClearCase structure cache " + myBaseDir + ": " + e.getLocalizedMessage(), e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      myCompactionScheduled.set(false); // the server is shutting down
+    }
   }
 
   public void cleanup(final @NotNull VcsRoot root) {
-    final File cacheDir = getCacheDir(root);
-    if (cacheDir == null) return;
-    cleanupFolder(cacheDir, true);
+    cleanup();
   }
 
-  private void doCleanup(final boolean keepLastCache) {
-    File[] folders = myBaseDir.listFiles();
-    if (folders != null) {
-      for (File folder : folders) {
-        if (!folder.isDirectory()) {
-          FileUtil.delete(folder);
+  /**
+   * Keeps the configured number of the latest snapshots for every root and path, they are the bases of the delta loads,
+   * along with the snapshots their changes are stored against.
+   * If the snapshots take more space than allowed, the least recently used ones are removed
+   * (older snapshots first, a base only after the snapshots stored against it) until they take 90% of the limit.
+   */
+  void compact() {
+    final int keep = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_STRUCTURE_CACHE_KEEP_SNAPSHOTS, 3));
+    final long maxSize = Math.max(1, TeamCityProperties.getInteger(Constants.TEAMCITY_PROPERTY_STRUCTURE_CACHE_MAX_SIZE_MB, 1024)) * 1024L * 1024L;
+    final List<File> latest = new ArrayList<File>();
+    final List<File> older = new ArrayList<File>();
+    final Map<File, File> bases = new HashMap<File, File>();
+    long totalSize = 0;
+
+    final File[] rootDirs = myBaseDir.listFiles();
+    if (rootDirs == null) return;
+    for (File rootDir : rootDirs) {
+      if (!rootDir.isDirectory()) {
+        FileUtil.delete(rootDir);
+        continue;
+      }
+      final File[] pathDirs = rootDir.listFiles();
+      if (pathDirs == null) continue;
+      for (File pathDir : pathDirs) {
+        if (CHECKPOINTS_DIR.equals(pathDir.getName()) || LABEL_JOURNALS_DIR.equals(pathDir.getName())) {
+          deleteStaleEntries(pathDir);
+          continue;
+        }
+        // path directories are named by a hash, other entries (config spec, patch indices) are not snapshots
+        if (!pathDir.isDirectory() || parseTime(pathDir) == null) continue;
+        if (!SHARED_DIR.equals(rootDir.getName())) {
+          // the snapshots are stored per root by the previous versions
+          FileUtil.delete(pathDir);
+          mySnapshots.remove(pathDir);
+          continue;
+        }
+        synchronized (myReferencesLock) {
+          releaseUnknownReferences(pathDir);
+          if (!isReferenced(pathDir)) {
+            FileUtil.delete(pathDir);
+            mySnapshots.remove(pathDir);
+            continue;
+          }
+        }
+        deleteStaleTempFiles(pathDir);
+        // an empty directory is kept while it is referenced, the root referencing it may be writing its first snapshot
+        final List<File> snapshots = listSnapshots(pathDir);
+        if (snapshots.isEmpty()) continue;
+        final Set<File> kept = new HashSet<File>();
+        for (int i = 0; i < snapshots.size() && i < keep; i++) {
+          keepWithBases(snapshots.get(i), kept, bases);
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+          final File snapshot = snapshots.get(i);
+          if (!kept.contains(snapshot)) {
+            deleteSnapshot(snapshot);
+          } else {
+            totalSize += snapshot.length();
+            (i == 0 ? latest : older).add(snapshot);
+          }
         }
-        cleanupFolder(folder, keepLastCache);
       }
     }
+
+    if (totalSize > maxSize) {
+      final List<File> candidates = sortByAccessTime(older);
+      candidates.addAll(sortByAccessTime(latest));
+      totalSize = evict(candidates, bases, totalSize, maxSize * 9 / 10);
+    }
+    LOG.debug("ClearCase structure cache size after compaction: " + totalSize + " bytes");
   }
 
-  private void cleanupFolder(final @NotNull File dir, final boolean keepLastCache) {
-    File[] subDirs = dir.listFiles();
-    if (subDirs != null) {
-      for (File subDir : subDirs) {
-        cleanupSubFolder(subDir, keepLastCache);
-      }
+  private static void keepWithBases(final @NotNull File snapshot, final @NotNull Set<File> kept, final @NotNull Map<File, File> bases) {
+    File current = snapshot;
+    while (kept.add(current)) {
+      final Long baseTime = DeltaSnapshot.readBaseTime(current);
+      if (baseTime == null) return;
+      final File base = new File(current.getParentFile(), String.valueOf(baseTime));
+      if (!base.isFile()) return;
+      bases.put(current, base);
+      current = base;
     }
   }
 
-  private void cleanupSubFolder(final @NotNull File subDir, final boolean keepLastCache) {
-    File[] versCaches = subDir.listFiles();
-    if (versCaches == null) return;
-    long lastCacheDate = -1;
-    for (File versCach : versCaches) {
-      try {
-        long currentCacheDate = Long.parseLong(versCach.getName());
-        if (currentCacheDate > lastCacheDate) {
-          lastCacheDate = currentCacheDate;
+  private long evict(final @NotNull List<File> candidates, final @NotNull Map<File, File> bases, long totalSize, final long targetSize) {
+    final Map<File, Integer> dependents = new HashMap<File, Integer>();
+    for (File base : bases.values()) {
+      final Integer count = dependents.get(base);
+      dependents.put(base, count == null ? 1 : count + 1);
+    }
+    boolean progress = true;
+    while (progress && totalSize > targetSize) {
+      progress = false;
+      for (Iterator<File> it = candidates.iterator(); it.hasNext() && totalSize > targetSize; ) {
+        final File snapshot = it.next();
+        final Integer count = dependents.get(snapshot);
+        if (count != null && count > 0) continue;
+        it.remove();
+        progress = true;
+        final long size = snapshot.length();
+        if (deleteSnapshot(snapshot)) {
+          totalSize -= size;
+          final File base = bases.get(snapshot);
+          if (base != null) {
+            dependents.put(base, dependents.get(base) - 1);
+          }
         }
-      } catch (NumberFormatException e) {
-        //ignore
       }
     }
+    return totalSize;
+  }
 
-    String keepFileName = String.valueOf(lastCacheDate);
+  @NotNull
+  private static List<File> sortByAccessTime(final @NotNull List<File> snapshots) {
+    final Map<File, Long> lastAccess = new HashMap<File, Long>();
+    for (File snapshot : snapshots) {
+      lastAccess.put(snapshot, snapshot.lastModified());
+    }
+    final List<File> result = new ArrayList<File>(snapshots);
+    Collections.sort(result, new Comparator<File>() {
+      public int compare(final File o1, final File o2) {
+        return lastAccess.get(o1).compareTo(lastAccess.get(o2));
+      }
+    });
+    return result;
+  }
 
-    for (File versCach : versCaches) {
-      if (!keepLastCache || !versCach.getName().equals(keepFileName)) {
-        FileUtil.delete(versCach);
+  /**
+   * Removes the files left by the snapshot creation interrupted by a server crash and the label check times of the removed snapshots
+   */
+  private static void deleteStaleTempFiles(final @NotNull File pathDir) {
+    final File[] files = pathDir.listFiles();
+    if (files == null) return;
+    final long staleTime = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+    for (File file : files) {
+      if (file.getName().endsWith(SnapshotData.TEMP_FILE_SUFFIX) && file.lastModified() < staleTime) {
+        FileUtil.delete(file);
+      }
+      else if (file.getName().endsWith(LABELS_CHECK_SUFFIX) &&
+               !new File(pathDir, file.getName().substring(0, file.getName().length() - LABELS_CHECK_SUFFIX.length())).isFile()) {
+        FileUtil.delete(file);
       }
     }
-    
-    if (!keepLastCache) {
-      FileUtil.delete(subDir);
+  }
+
+  /**
+   * The checkpoints and the label journals are needed while the walk of their revision or the labeling is retried,
+   * they are not counted in the cache size
+   */
+  private static void deleteStaleEntries(final @NotNull File dir) {
+    final File[] entries = dir.listFiles();
+    if (entries == null) return;
+    final long staleTime = System.currentTimeMillis() - STALE_CHECKPOINT_AGE;
+    for (File entry : entries) {
+      if (entry.lastModified() < staleTime) {
+        FileUtil.delete(entry);
+      }
+    }
+  }
+
+  /**
+   * @return the snapshots of the directory, the latest first
+   */
+  @NotNull
+  private static List<File> listSnapshots(final @NotNull File pathDir) {
+    final List<File> result = new ArrayList<File>();
+    final File[] files = pathDir.listFiles();
+    if (files == null) return result;
+    for (File file : files) {
+      if (file.isFile() && parseTime(file) != null) {
+        result.add(file);
+      }
+    }
+    Collections.sort(result, new Comparator<File>() {
+      public int compare(final File o1, final File o2) {
+        return parseTime(o2).compareTo(parseTime(o1));
+      }
+    });
+    return result;
+  }
+
+  private boolean deleteSnapshot(final @NotNull File snapshot) {
+    // the index is updated first, so the snapshot is not chosen as a base while it is being deleted
+    snapshotRemoved(snapshot);
+    if (FileUtil.delete(snapshot)) {
+      FileUtil.delete(getLabelsCheckFile(snapshot));
+      return true;
+    }
+    snapshotWritten(snapshot);
+    return false;
+  }
+
+  private void cleanupFolder(final @NotNull File dir) {
+    File[] subDirs = dir.listFiles();
+    if (subDirs != null) {
+      for (File subDir : subDirs) {
+        cleanupSubFolder(subDir);
+      }
+    }
+  }
+
+  private void cleanupSubFolder(final @NotNull File subDir) {
+    File[] versCaches = subDir.listFiles();
+    if (versCaches == null) return;
+    for (File versCach : versCaches) {
+      FileUtil.delete(versCach);
     }
+    FileUtil.delete(subDir);
+    mySnapshots.remove(subDir);
   }
 
   public void clearCaches(final @NotNull VcsRoot root) {
     final File dir = getCacheDir(root);
     if (dir != null) {
-      cleanupFolder(dir, false);
+      cleanupFolder(dir);
     }
+    releaseSharedPathDirs(root);
   }
 
   @Nullable
@@ -45,6 +45,22 @@ class CollectingChangedFilesProcessor implements ChangedFilesProcessor {
     }
   }
 
+  /**
+   * A label event changes the selected version of the element but is not a checkin, the file version is corrected
+   * like a changed file. The structure of a directory is not loaded for a label event.
+   * The file may be missing in the snapshot being corrected (e.g. it becomes visible once labeled), such a correction
+   * is reported by {@link WriteCorrectingVersionProcessor#getUnusedLabelCorrections()}.
+   * @return false if the event cannot be applied as a version change of a file
+   */
+  boolean processLabelEvent(@NotNull final HistoryElement element) throws VcsException {
+    if (!"version".equals(element.getObjectKind())) return false;
+    final String path = element.getObjectName();
+    final Version lastVersion = myConnection.getLastVersion(path, true);
+    if (lastVersion == null || lastVersion.getWholeName() == null) return false;
+    myChangedElements.add(new ChangedElementInfo(getRelativePath(path), lastVersion.getWholeName(), ChangedElementInfo.ChangeType.CHANGED_FILE, true));
+    return true;
+  }
+
   public void processDestroyedFileVersion(@NotNull final HistoryElement element) {
     final String path = element.getObjectName();
     myChangedElements.add(new ChangedElementInfo(getRelativePath(path), element.getObjectVersion(), ChangedElementInfo.ChangeType.DELETED_VERSION));
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads a snapshot written by {@link CompactSnapshotWriter}. The file is read into a heap buffer at once, only the string table
+ * is decoded eagerly, the entries are decoded while they are visited.
+ */
+class CompactSnapshotReader {
+  interface Visitor {
+    void file(@NotNull String name, @NotNull String version, boolean text, boolean executable) throws VcsException;
+
+    void dirOpen(@NotNull String name, @NotNull String version) throws VcsException;
+
+    void dirClose() throws VcsException;
+  }
+
+  @NotNull private final File myFile;
+  @NotNull private final ByteBuffer myBuffer;
+  @NotNull private final String[] myStrings;
+  private final int myBodyStart;
+  private final int myBodyEnd;
+
+  CompactSnapshotReader(@NotNull final File file) throws IOException {
+    myFile = file;
+    myBuffer = read(file);
+    try {
+      if (myBuffer.getInt() != CompactSnapshotWriter.MAGIC || myBuffer.getInt() != CompactSnapshotWriter.FORMAT_VERSION) {
+        throw new BrokenSnapshotException("Unsupported format of the structure cache snapshot " + file);
+      }
+      myStrings = new String[readVarInt()];
+      for (int i = 0; i < myStrings.length; i++) {
+        final byte[] bytes = new byte[readVarInt()];
+        myBuffer.get(bytes);
+        myStrings[i] = new String(bytes, "UTF-8");
+      }
+      final int bodyLength = readVarInt();
+      myBodyStart = myBuffer.position();
+      myBodyEnd = myBodyStart + bodyLength;
+      myBuffer.position(myBodyEnd);
+      myBuffer.getLong(); // the element count, see readElementCount()
+      if (myBuffer.getInt() != CompactSnapshotWriter.END_MAGIC || myBuffer.hasRemaining()) {
+        throw new BrokenSnapshotException("Structure cache snapshot " + file + " is damaged");
+      }
+    }
+    catch (final BufferUnderflowException e) {
+      throw new BrokenSnapshotException("Structure cache snapshot " + file + " is truncated");
+    }
+    catch (final IllegalArgumentException e) {
+      throw new BrokenSnapshotException("Structure cache snapshot " + file + " is damaged");
+    }
+  }
+
+  void processAll(@NotNull final Visitor visitor) throws IOException, VcsException {
+    process(myBodyStart, myBodyEnd, visitor);
+  }
+
+  private void process(final int start, final int end, @NotNull final Visitor visitor) throws IOException, VcsException {
+    final ByteBuffer buffer = myBuffer.duplicate();
+    buffer.position(start);
+    try {
+      while (buffer.position() < end) {
+        final int tag = buffer.get() & 0xFF;
+        final int type = tag & CompactSnapshotWriter.TYPE_MASK;
+        if (type == CacheElement.FILE_TYPE) {
+          final String name = readString(buffer);
+          visitor.file(name, readVersion(buffer), (tag & CompactSnapshotWriter.TEXT_FLAG) != 0, (tag & CompactSnapshotWriter.EXECUTABLE_FLAG) != 0);
+        }
+        else if (type == CacheElement.DIR_OPEN_TYPE) {
+          final String name = readString(buffer);
+          visitor.dirOpen(name, readVersion(buffer));
+        }
+        else if (type == CacheElement.DIR_CLOSE_TYPE) {
+          visitor.dirClose();
+        }
+        else {
+          throw new BrokenSnapshotException("Unexpected type " + tag + " in " + myFile);
+        }
+      }
+    }
+    catch (final BufferUnderflowException e) {
+      throw new BrokenSnapshotException("Structure cache snapshot " + myFile + " is truncated");
+    }
+  }
+
+  @NotNull
+  private String readVersion(@NotNull final ByteBuffer buffer) throws IOException {
+    final String branch = readString(buffer);
+    final int number = readVarInt(buffer);
+    return number == 0 ? branch : branch + (number - 1);
+  }
+
+  @NotNull
+  private String readString(@NotNull final ByteBuffer buffer) throws IOException {
+    final int index = readVarInt(buffer);
+    if (index < 0 || index >= myStrings.length) {
+      throw new BrokenSnapshotException("Unexpected string index " + index + " in " + myFile);
+    }
+    return myStrings[index];
+  }
+
+  /**
+   * @return the number of the files and directories of the snapshot, only the header and the trailer of the file are read
+   */
+  static long readElementCount(@NotNull final File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.readInt() != CompactSnapshotWriter.MAGIC || raf.readInt() != CompactSnapshotWriter.FORMAT_VERSION) {
+        throw new BrokenSnapshotException("Unsupported format of the structure cache snapshot " + file);
+      }
+      final long trailer = raf.length() - 12;
+      if (trailer < 8) throw new BrokenSnapshotException("Structure cache snapshot " + file + " is truncated");
+      raf.seek(trailer);
+      final long count = raf.readLong();
+      if (raf.readInt() != CompactSnapshotWriter.END_MAGIC || count < 0) {
+        throw new BrokenSnapshotException("Structure cache snapshot " + file + " is damaged");
+      }
+      return count;
+    }
+    catch (final EOFException e) {
+      throw new BrokenSnapshotException("Structure cache snapshot " + file + " is truncated");
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  private int readVarInt() throws IOException {
+    return readVarInt(myBuffer);
+  }
+
+  private static int readVarInt(@NotNull final ByteBuffer buffer) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      final byte b = buffer.get();
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new BrokenSnapshotException("Malformed number in the structure cache snapshot");
+  }
+
+  /**
+   * The file is read into the heap rather than memory-mapped: a mapping is released only by GC, and on Windows
+   * a mapped file can be neither deleted nor replaced, which the snapshot maintenance does right after reading
+   */
+  @NotNull
+  private static ByteBuffer read(@NotNull final File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      final long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new BrokenSnapshotException("Structure cache snapshot " + file + " is too large");
+      final ByteBuffer buffer = ByteBuffer.allocate((int)size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) throw new BrokenSnapshotException("Structure cache snapshot " + file + " is truncated");
+      }
+      buffer.flip();
+      return buffer;
+    }
+    finally {
+      raf.close();
+    }
+  }
+}
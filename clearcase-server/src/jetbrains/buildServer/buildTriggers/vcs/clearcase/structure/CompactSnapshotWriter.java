@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes the full structure cache snapshot in the compact format:
+ * <pre>
+ * int MAGIC, int FORMAT_VERSION
+ * varint string count, strings (varint byte length + UTF-8 bytes)
+ * varint body length, body
+ * long element count, int END_MAGIC
+ * </pre>
+ * The body holds the same entries as the old format in the same order, every entry is a tag byte
+ * (FILE_TYPE with TEXT_FLAG/EXECUTABLE_FLAG, DIR_OPEN_TYPE or DIR_CLOSE_TYPE) followed for files and directories by
+ * varint name, varint branch and varint version number + 1, e.g. "/main/proj_int/142" is stored as
+ * the string "/main/proj_int" and 143. If the version does not end with a number
+ * that can be restored exactly (e.g. it has leading zeros or more than 9 digits), the branch is the whole version and the number is 0.
+ * The element count (files and directories) is at a fixed offset from the end, see {@link CompactSnapshotReader#readElementCount(File)}.
+ * The snapshot is built in memory and written by {@link #writeTo(File)}, the trailer is checked by the reader
+ * to reject a damaged file.
+ */
+class CompactSnapshotWriter extends SnapshotData implements SnapshotSink {
+  static final int MAGIC = 0x43435332; // "CCS2"
+  static final int FORMAT_VERSION = 5;
+  static final int END_MAGIC = 0x43434532; // "CCE2"
+
+  static final int TEXT_FLAG = 0x10;
+  static final int EXECUTABLE_FLAG = 0x20;
+  static final int TYPE_MASK = 0x0F;
+
+  private final Map<String, Integer> myStrings = new LinkedHashMap<String, Integer>();
+  private final ByteArrayOutputStream myBody = new ByteArrayOutputStream();
+  private long myElementCount;
+
+  public void writeFile(@NotNull final String version, @NotNull final String name, final boolean text, final boolean executable) throws IOException {
+    myBody.write(CacheElement.FILE_TYPE | (text ? TEXT_FLAG : 0) | (executable ? EXECUTABLE_FLAG : 0));
+    myElementCount++;
+    writeNameAndVersion(name, version);
+  }
+
+  public void writeDirOpen(@NotNull final String version, @NotNull final String name) throws IOException {
+    myBody.write(CacheElement.DIR_OPEN_TYPE);
+    myElementCount++;
+    writeNameAndVersion(name, version);
+  }
+
+  public void writeDirClose() throws IOException {
+    myBody.write(CacheElement.DIR_CLOSE_TYPE);
+  }
+
+  protected void write(@NotNull final DataOutputStream output) throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(FORMAT_VERSION);
+
+    writeVarInt(output, myStrings.size());
+    for (final String string : myStrings.keySet()) {
+      writeString(output, string);
+    }
+
+    writeVarInt(output, myBody.size());
+    myBody.writeTo(output);
+
+    output.writeLong(myElementCount);
+    output.writeInt(END_MAGIC);
+  }
+
+  private void writeNameAndVersion(@NotNull final String name, @NotNull final String version) throws IOException {
+    writeVarInt(myBody, getStringIndex(name));
+    int numberStart = version.length();
+    while (numberStart > 0 && Character.isDigit(version.charAt(numberStart - 1))) numberStart--;
+    if (numberStart == version.length() || numberStart == 0 || version.length() - numberStart > 9
+        || version.charAt(numberStart) == '0' && numberStart < version.length() - 1) {
+      writeVarInt(myBody, getStringIndex(version));
+      writeVarInt(myBody, 0);
+    }
+    else {
+      writeVarInt(myBody, getStringIndex(version.substring(0, numberStart)));
+      writeVarInt(myBody, Integer.parseInt(version.substring(numberStart)) + 1);
+    }
+  }
+
+  private int getStringIndex(@NotNull final String string) {
+    Integer index = myStrings.get(string);
+    if (index == null) {
+      index = myStrings.size();
+      myStrings.put(string, index);
+    }
+    return index;
+  }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Snapshot stored as the changes against an older snapshot (its base) of the same root and path:
+ * <pre>
+ * int MAGIC, int FORMAT_VERSION, long base time, varint chain length, long element count
+ * varint edit count, for every edit: string relative path, byte flags, [string version], [varint count, added entries]
+ * int END_MAGIC
+ * </pre>
+ * An edit deletes the entry (with its subtree), replaces its version or adds entries right after the directory open,
+ * exactly as {@link WriteCorrectingVersionProcessor} does for a full snapshot. The chain length is the number of deltas
+ * down to the full snapshot, it is limited so that a long chain is replaced by a full snapshot again.
+ * The element count is the number of the files and directories of the resulting snapshot, it is counted by {@link #getResultSink()}
+ * while the delta is built, so the size of a snapshot is known without applying its chain.
+ */
+class DeltaSnapshot extends SnapshotData {
+  static final int MAGIC = 0x43434433; // "CCD3"
+  private static final int FORMAT_VERSION = 2;
+  private static final int END_MAGIC = 0x43434544; // "CCED"
+
+  private static final int DELETED_FLAG = 1;
+  private static final int VERSION_FLAG = 2;
+  private static final int ADDED_FLAG = 4;
+
+  private final long myBaseTime;
+  private final int myChainLength;
+  private long myElementCount;
+  @NotNull private final Map<String, Edit> myEdits = new LinkedHashMap<String, Edit>();
+
+  DeltaSnapshot(final long baseTime, final int chainLength) {
+    myBaseTime = baseTime;
+    myChainLength = chainLength;
+  }
+
+  int getChainLength() {
+    return myChainLength;
+  }
+
+  int getEditCount() {
+    return myEdits.size();
+  }
+
+  /**
+   * @return the sink receiving all the entries of the resulting snapshot while the delta is built, it counts them
+   */
+  @NotNull
+  SnapshotSink getResultSink() {
+    return new SnapshotSink() {
+      public void writeFile(@NotNull final String version, @NotNull final String name, final boolean text, final boolean executable) {
+        myElementCount++;
+      }
+
+      public void writeDirOpen(@NotNull final String version, @NotNull final String name) {
+        myElementCount++;
+      }
+
+      public void writeDirClose() {
+      }
+    };
+  }
+
+  @NotNull
+  File getBaseFile(@NotNull final File file) {
+    return new File(file.getParentFile(), String.valueOf(myBaseTime));
+  }
+
+  void deleted(@NotNull final String relPath) {
+    getEdit(relPath).myDeleted = true;
+  }
+
+  void versionChanged(@NotNull final String relPath, @NotNull final String version) {
+    getEdit(relPath).myVersion = version;
+  }
+
+  /**
+   * @return the sink for the entries added to the directory, they follow its open entry
+   */
+  @NotNull
+  SnapshotSink added(@NotNull final String dirRelPath) {
+    final List<Entry> added = getEdit(dirRelPath).myAdded;
+    return new SnapshotSink() {
+      public void writeFile(@NotNull final String version, @NotNull final String name, final boolean text, final boolean executable) {
+        added.add(new Entry(CacheElement.FILE_TYPE | (text ? CompactSnapshotWriter.TEXT_FLAG : 0) | (executable ? CompactSnapshotWriter.EXECUTABLE_FLAG : 0), name, version));
+      }
+
+      public void writeDirOpen(@NotNull final String version, @NotNull final String name) {
+        added.add(new Entry(CacheElement.DIR_OPEN_TYPE, name, version));
+      }
+
+      public void writeDirClose() {
+        added.add(new Entry(CacheElement.DIR_CLOSE_TYPE, "", ""));
+      }
+    };
+  }
+
+  @NotNull
+  private Edit getEdit(@NotNull final String relPath) {
+    Edit edit = myEdits.get(relPath);
+    if (edit == null) {
+      edit = new Edit();
+      myEdits.put(relPath, edit);
+    }
+    return edit;
+  }
+
+  /**
+   * @return the visitor passing the entries of the base to the target with the changes applied
+   */
+  @NotNull
+  CompactSnapshotReader.Visitor apply(@NotNull final CompactSnapshotReader.Visitor target) {
+    return new CompactSnapshotReader.Visitor() {
+      private final CachePathCursor myCursor = new CachePathCursor(null);
+      private int mySkippedDepth;
+
+      public void file(@NotNull final String name, @NotNull final String version, final boolean text, final boolean executable) throws VcsException {
+        if (mySkippedDepth > 0) return;
+        myCursor.push(name, version);
+        final Edit edit = myEdits.get(myCursor.getRelPath());
+        myCursor.pop();
+        if (edit == null) {
+          target.file(name, version, text, executable);
+        }
+        else if (!edit.myDeleted) {
+          target.file(name, edit.myVersion != null ? edit.myVersion : version, text, executable);
+        }
+      }
+
+      public void dirOpen(@NotNull final String name, @NotNull final String version) throws VcsException {
+        if (mySkippedDepth > 0) {
+          mySkippedDepth++;
+          return;
+        }
+        myCursor.push(name, version);
+        final Edit edit = myEdits.get(myCursor.getRelPath());
+        if (edit == null) {
+          target.dirOpen(name, version);
+          return;
+        }
+        if (edit.myDeleted) {
+          myCursor.pop();
+          mySkippedDepth = 1;
+          return;
+        }
+        target.dirOpen(name, edit.myVersion != null ? edit.myVersion : version);
+        for (final Entry added : edit.myAdded) {
+          added.visit(target);
+        }
+      }
+
+      public void dirClose() throws VcsException {
+        if (mySkippedDepth > 0) {
+          mySkippedDepth--;
+          return;
+        }
+        myCursor.pop();
+        target.dirClose();
+      }
+    };
+  }
+
+  protected void write(@NotNull final DataOutputStream output) throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(FORMAT_VERSION);
+    output.writeLong(myBaseTime);
+    writeVarInt(output, myChainLength);
+    output.writeLong(myElementCount);
+    writeVarInt(output, myEdits.size());
+    for (final Map.Entry<String, Edit> entry : myEdits.entrySet()) {
+      final Edit edit = entry.getValue();
+      writeString(output, entry.getKey());
+      output.writeByte((edit.myDeleted ? DELETED_FLAG : 0) | (edit.myVersion != null ? VERSION_FLAG : 0) | (edit.myAdded.isEmpty() ? 0 : ADDED_FLAG));
+      if (edit.myVersion != null) {
+        writeString(output, edit.myVersion);
+      }
+      if (!edit.myAdded.isEmpty()) {
+        writeVarInt(output, edit.myAdded.size());
+        for (final Entry added : edit.myAdded) {
+          output.writeByte(added.myTag);
+          writeString(output, added.myName);
+          writeString(output, added.myVersion);
+        }
+      }
+    }
+    output.writeInt(END_MAGIC);
+  }
+
+  @NotNull
+  static DeltaSnapshot read(@NotNull final File file) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+        throw new BrokenSnapshotException("Unsupported format of the structure cache snapshot " + file);
+      }
+      final long baseTime = input.readLong();
+      if (!isOlder(baseTime, file)) {
+        throw new BrokenSnapshotException("Structure cache snapshot " + file + " does not refer to an older snapshot");
+      }
+      final DeltaSnapshot result = new DeltaSnapshot(baseTime, readVarInt(input));
+      result.myElementCount = input.readLong();
+      final int edits = readVarInt(input);
+      for (int i = 0; i < edits; i++) {
+        final Edit edit = result.getEdit(readString(input));
+        final int flags = input.readUnsignedByte();
+        edit.myDeleted = (flags & DELETED_FLAG) != 0;
+        if ((flags & VERSION_FLAG) != 0) {
+          edit.myVersion = readString(input);
+        }
+        if ((flags & ADDED_FLAG) != 0) {
+          final int added = readVarInt(input);
+          for (int j = 0; j < added; j++) {
+            final int tag = input.readUnsignedByte();
+            final String name = readString(input);
+            edit.myAdded.add(new Entry(tag, name, readString(input)));
+          }
+        }
+      }
+      if (input.readInt() != END_MAGIC || input.read() != -1) {
+        throw new BrokenSnapshotException("Structure cache snapshot " + file + " is damaged");
+      }
+      return result;
+    }
+    catch (final EOFException e) {
+      throw new BrokenSnapshotException("Structure cache snapshot " + file + " is truncated");
+    }
+    finally {
+      FileUtil.close(input);
+    }
+  }
+
+  /**
+   * @return the time of the base snapshot, null if the file is not a delta snapshot or cannot be read
+   */
+  @Nullable
+  static Long readBaseTime(@NotNull final File file) {
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) return null;
+      return input.readLong();
+    }
+    catch (final IOException e) {
+      return null;
+    }
+    finally {
+      FileUtil.close(input);
+    }
+  }
+
+  /**
+   * @return the chain length of the snapshot, 0 for a full one
+   */
+  static int readChainLength(@NotNull final File file) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) return 0;
+      input.readLong();
+      return readVarInt(input);
+    }
+    catch (final EOFException e) {
+      throw new BrokenSnapshotException("Structure cache snapshot " + file + " is truncated");
+    }
+    finally {
+      FileUtil.close(input);
+    }
+  }
+
+  /**
+   * @return the number of the files and directories of the snapshot, only the header of the file is read
+   */
+  static long readElementCount(@NotNull final File file) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+        throw new BrokenSnapshotException("Unsupported format of the structure cache snapshot " + file);
+      }
+      input.readLong();
+      readVarInt(input);
+      return input.readLong();
+    }
+    catch (final EOFException e) {
+      throw new BrokenSnapshotException("Structure cache snapshot " + file + " is truncated");
+    }
+    finally {
+      FileUtil.close(input);
+    }
+  }
+
+  private static boolean isOlder(final long baseTime, @NotNull final File file) {
+    try {
+      return baseTime < Long.parseLong(file.getName());
+    }
+    catch (final NumberFormatException e) {
+      return true;
+    }
+  }
+
+  private static int readVarInt(@NotNull final DataInput input) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      final byte b = input.readByte();
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new BrokenSnapshotException("Malformed number in the structure cache snapshot");
+  }
+
+  @NotNull
+  private static String readString(@NotNull final DataInput input) throws IOException {
+    final int length = readVarInt(input);
+    if (length < 0) throw new BrokenSnapshotException("Malformed string in the structure cache snapshot");
+    final byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static class Edit {
+    private boolean myDeleted;
+    @Nullable private String myVersion;
+    @NotNull private final List<Entry> myAdded = new ArrayList<Entry>();
+  }
+
+  private static class Entry {
+    private final int myTag;
+    @NotNull private final String myName;
+    @NotNull private final String myVersion;
+
+    private Entry(final int tag, @NotNull final String name, @NotNull final String version) {
+      myTag = tag;
+      myName = name;
+      myVersion = version;
+    }
+
+    private void visit(@NotNull final CompactSnapshotReader.Visitor visitor) throws VcsException {
+      final int type = myTag & CompactSnapshotWriter.TYPE_MASK;
+      if (type == CacheElement.FILE_TYPE) {
+        visitor.file(myName, myVersion, (myTag & CompactSnapshotWriter.TEXT_FLAG) != 0, (myTag & CompactSnapshotWriter.EXECUTABLE_FLAG) != 0);
+      }
+      else if (type == CacheElement.DIR_OPEN_TYPE) {
+        visitor.dirOpen(myName, myVersion);
+      }
+      else {
+        visitor.dirClose();
+      }
+    }
+  }
+}
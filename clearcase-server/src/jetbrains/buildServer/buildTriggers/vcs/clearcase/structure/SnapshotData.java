@@ -0,0 +1,74 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.*;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Content of a structure cache snapshot file built in memory. It is written to a temporary file which is renamed
+ * to the target when it is complete, so a snapshot file is either absent or whole.
+ */
+abstract class SnapshotData {
+  static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  protected abstract void write(@NotNull DataOutputStream output) throws IOException;
+
+  void writeTo(@NotNull final File file) throws IOException {
+    final File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Failed to create directory " + dir);
+    }
+    final File tmp = File.createTempFile("snapshot", TEMP_FILE_SUFFIX, dir);
+    try {
+      final FileOutputStream fileOutput = new FileOutputStream(tmp);
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+      try {
+        write(output);
+        output.flush();
+        fileOutput.getFD().sync();
+      }
+      finally {
+        output.close();
+      }
+      if (!tmp.renameTo(file)) {
+        FileUtil.delete(file);
+        if (!tmp.renameTo(file)) {
+          throw new IOException("Failed to rename " + tmp + " to " + file);
+        }
+      }
+    }
+    finally {
+      FileUtil.delete(tmp);
+    }
+  }
+
+  static void writeVarInt(@NotNull final OutputStream output, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      output.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    output.write(value);
+  }
+
+  static void writeString(@NotNull final OutputStream output, @NotNull final String string) throws IOException {
+    final byte[] bytes = string.getBytes("UTF-8");
+    writeVarInt(output, bytes.length);
+    output.write(bytes);
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives the entries of a snapshot in the walking order
+ */
+interface SnapshotSink {
+  void writeFile(@NotNull String version, @NotNull String name, boolean text, boolean executable) throws IOException;
+
+  void writeDirOpen(@NotNull String version, @NotNull String name) throws IOException;
+
+  void writeDirClose() throws IOException;
+}
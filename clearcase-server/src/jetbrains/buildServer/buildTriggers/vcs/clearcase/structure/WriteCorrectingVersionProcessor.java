@@ -17,21 +17,32 @@
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.*;
 import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 
 class WriteCorrectingVersionProcessor implements VersionProcessor {
   private final Map<String, ChangedElementInfo> myChangedElements = new HashMap<String, ChangedElementInfo>();
   private final WriteVersionProcessor myWriteProcessor;
   private final Stack<String> myIgnoreStack;
+  private final @Nullable DeltaSnapshot myDelta;
+  private final Set<String> myUnusedLabelCorrections = new HashSet<String>();
 
+  /**
+   * @param delta if specified, the resolved changes are recorded to it as well
+   */
   public WriteCorrectingVersionProcessor(final List<ChangedElementInfo> changedElements,
-                                         final WriteVersionProcessor writeProcessor) {
+                                         final WriteVersionProcessor writeProcessor,
+                                         final @Nullable DeltaSnapshot delta) {
     for (ChangedElementInfo changedElement : changedElements) {
       ChangedElementInfo prev = myChangedElements.get(changedElement.myRelativePath);
       if (prev == null) {
@@ -50,8 +61,14 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
         myChangedElements.put(changedElement.myRelativePath, changedElement);
       }
     }
+    for (ChangedElementInfo changedElement : myChangedElements.values()) {
+      if (changedElement.myLabelCorrection) {
+        myUnusedLabelCorrections.add(changedElement.myRelativePath);
+      }
+    }
     myWriteProcessor = writeProcessor;
     myIgnoreStack = new Stack<String>();
+    myDelta = delta;
   }
 
   private ChangedElementInfo findLatest(final ChangedElementInfo elem1, final ChangedElementInfo elem2) {
@@ -75,14 +92,23 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
         myWriteProcessor.writeFile(version, new File(relPath).getName(), text, executable);
       }
       else if (changedElement.myChangeType == ChangedElementInfo.ChangeType.DELETED_FILE) {
-        //ignore
+        if (myDelta != null) {
+          myDelta.deleted(relPath);
+        }
       }
       else if (changedElement.myChangeType == ChangedElementInfo.ChangeType.CHANGED_FILE) {
+        myUnusedLabelCorrections.remove(relPath);
         myWriteProcessor.writeFile(changedElement.myVersion, new File(relPath).getName(), text, executable);
+        if (myDelta != null) {
+          myDelta.versionChanged(relPath, changedElement.myVersion);
+        }
       }
       else if (changedElement.myChangeType == ChangedElementInfo.ChangeType.DELETED_VERSION) {
         final String lastVersion = clearCaseConnection.getLastVersion(pname, true).getWholeName();
         myWriteProcessor.writeFile(lastVersion, new File(relPath).getName(), text, executable);
+        if (myDelta != null) {
+          myDelta.versionChanged(relPath, lastVersion);
+        }
       }
     }
   }
@@ -102,10 +128,19 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
     }
     else if (changedElement.myChangeType == ChangedElementInfo.ChangeType.DELETED_DIR) {
       myIgnoreStack.push(changedElement.myRelativePath);
+      if (myDelta != null) {
+        myDelta.deleted(relPath);
+      }
     }
     else if (changedElement.myChangeType == ChangedElementInfo.ChangeType.CHANGED_DIR) {
       myWriteProcessor.writeDirOpen(changedElement.myVersion, new File(relPath).getName());
-      processAddedElements(changedElement, myWriteProcessor, clearCaseConnection, fileFullPath);
+      if (myDelta == null) {
+        processAddedElements(changedElement, myWriteProcessor, clearCaseConnection, fileFullPath);
+      }
+      else {
+        myDelta.versionChanged(relPath, changedElement.myVersion);
+        processAddedElements(changedElement, new WriteVersionProcessor(new TeeSnapshotSink(myWriteProcessor.getSink(), myDelta.added(relPath))), clearCaseConnection, fileFullPath);
+      }
     }
   }
 
@@ -118,6 +153,7 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
     for (ChangedElementInfo addedElem : changedElement.getAddedElements()) {
 
       if (addedElem.myChangeType == ChangedElementInfo.ChangeType.ADDED_FILE) {
+        myUnusedLabelCorrections.remove(addedElem.myRelativePath);
         final String fileName = new File(addedElem.myRelativePath).getName();
         final ClearCaseFileAttr attr = clearCaseConnection.loadFileAttr(parentPathWithNewVersion + File.separator + fileName + CCParseUtil.CC_VERSION_SEPARATOR);
         writeProcessor.writeFile(addedElem.myVersion, fileName, attr.isIsText(), attr.isIsExecutable());
@@ -137,6 +173,14 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
     }
   }
 
+  /**
+   * @return the files corrected by the label events which were not met in the processed snapshot,
+   * the result of the processing misses them
+   */
+  Set<String> getUnusedLabelCorrections() {
+    return myUnusedLabelCorrections;
+  }
+
   private String getParentWithNewVersion(final String parentDirFullPath,
                                          final ChangedElementInfo changedElement,
                                          final ClearCaseConnection clearCaseConnection) {
@@ -151,4 +195,29 @@ class WriteCorrectingVersionProcessor implements VersionProcessor {
       myWriteProcessor.writeDirClose();
     }
   }
+
+  private static class TeeSnapshotSink implements SnapshotSink {
+    private final SnapshotSink myFirst;
+    private final SnapshotSink mySecond;
+
+    private TeeSnapshotSink(final SnapshotSink first, final SnapshotSink second) {
+      myFirst = first;
+      mySecond = second;
+    }
+
+    public void writeFile(@NotNull final String version, @NotNull final String name, final boolean text, final boolean executable) throws IOException {
+      myFirst.writeFile(version, name, text, executable);
+      mySecond.writeFile(version, name, text, executable);
+    }
+
+    public void writeDirOpen(@NotNull final String version, @NotNull final String name) throws IOException {
+      myFirst.writeDirOpen(version, name);
+      mySecond.writeDirOpen(version, name);
+    }
+
+    public void writeDirClose() throws IOException {
+      myFirst.writeDirClose();
+      mySecond.writeDirClose();
+    }
+  }
 }
@@ -16,20 +16,22 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.ClearCaseConnection;
 import jetbrains.buildServer.buildTriggers.vcs.clearcase.VersionProcessor;
-import jetbrains.buildServer.util.TCStreamUtil;
 import jetbrains.buildServer.vcs.VcsException;
 
 
 class WriteVersionProcessor implements VersionProcessor {
-  private final DataOutputStream myOutputStream;
+  private final SnapshotSink myWriter;
 
-  public WriteVersionProcessor(final DataOutputStream outputStream) {
-    myOutputStream = outputStream;
+  public WriteVersionProcessor(final SnapshotSink writer) {
+    myWriter = writer;
+  }
+
+  SnapshotSink getSink() {
+    return myWriter;
   }
 
   public void processFile(final String fileFullPath,
@@ -41,29 +43,13 @@ class WriteVersionProcessor implements VersionProcessor {
   }
 
   public void writeFile(final String version, final String fileName, final boolean text, final boolean executable) throws VcsException {
-    String versionWithMode = createVersionWithMode(version, text, executable);
     try {
-      myOutputStream.writeByte(CacheElement.FILE_TYPE);      
-      TCStreamUtil.writeString(myOutputStream, fileName);
-      TCStreamUtil.writeString(myOutputStream, versionWithMode);
+      myWriter.writeFile(version, fileName, text, executable);
     } catch (IOException e) {
       throw new VcsException(e);
     }
   }
 
-  private String createVersionWithMode(final String version, final boolean text, final boolean executable) {
-    if (!text && !executable) {
-      return version;
-    }
-    if (text && executable) {
-      return version + "|" + "tx";
-    }
-    else if (text) {
-      return version + "|" + "t";
-    }
-    return version + "|" + "x";
-  }
-
   public void processDirectory(final String fileFullPath,
                                final String relPath,
                                final String pname,
@@ -74,10 +60,7 @@ class WriteVersionProcessor implements VersionProcessor {
 
   public void writeDirOpen(final String version, final String name) throws VcsException {
     try {
-      myOutputStream.writeByte(CacheElement.DIR_OPEN_TYPE);
-      
-      TCStreamUtil.writeString(myOutputStream, name);
-      TCStreamUtil.writeString(myOutputStream, version);
+      myWriter.writeDirOpen(version, name);
     } catch (IOException e) {
       throw new VcsException(e);
     }
@@ -89,7 +72,7 @@ class WriteVersionProcessor implements VersionProcessor {
 
   public void writeDirClose() throws VcsException {
     try {
-      myOutputStream.writeByte(CacheElement.DIR_CLOSE_TYPE);
+      myWriter.writeDirClose();
     } catch (IOException e) {
       throw new VcsException(e);
     }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+@Test
+public class CompactSnapshotTest {
+  private File myTempDir;
+
+  @BeforeMethod
+  protected void setUp() throws Exception {
+    myTempDir = FileUtil.createTempDirectory("compactSnapshot", "");
+  }
+
+  @AfterMethod
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void round_trip() throws Exception {
+    final CompactSnapshotWriter writer = new CompactSnapshotWriter();
+    writer.writeDirOpen("/main/3", "");
+    writer.writeFile("/main/1", "a.txt", true, false);
+    writer.writeDirOpen("/main/proj_int/142", "src");
+    writer.writeFile("/main/proj_int/7", "run.sh", true, true);
+    writer.writeFile("/main/2", "lib.jar", false, false);
+    writer.writeDirOpen("/main/1", "empty");
+    writer.writeDirClose();
+    writer.writeDirClose();
+    writer.writeDirClose();
+    final File file = new File(myTempDir, "1000");
+    writer.writeTo(file);
+
+    assertEquals(SnapshotRecorder.readCompact(file), Arrays.asList(
+      "D  /main/3",
+      "F a.txt /main/1 t",
+      "D src /main/proj_int/142",
+      "F run.sh /main/proj_int/7 t x",
+      "F lib.jar /main/2",
+      "D empty /main/1",
+      "C",
+      "C",
+      "C"));
+    assertEquals(CompactSnapshotReader.readElementCount(file), 6);
+    assertEquals(CacheProcessor.readElementCount(file), 6);
+  }
+
+  public void versions_are_restored_exactly() throws Exception {
+    final List<String> versions = Arrays.asList(
+      "/main/0",
+      "/main/999999999",
+      "/main/2147483647",
+      "/main/12345678901",
+      "/main/007",
+      "/main/10",
+      "/main/LATEST",
+      "/main/br_1",
+      "123",
+      "");
+    final CompactSnapshotWriter writer = new CompactSnapshotWriter();
+    writer.writeDirOpen("/main/0", "");
+    for (int i = 0; i < versions.size(); i++) {
+      writer.writeFile(versions.get(i), "f" + i, false, false);
+    }
+    writer.writeDirClose();
+    final File file = new File(myTempDir, "1000");
+    writer.writeTo(file);
+
+    final List<String> entries = SnapshotRecorder.readCompact(file);
+    assertEquals(entries.size(), versions.size() + 2);
+    for (int i = 0; i < versions.size(); i++) {
+      assertEquals(entries.get(i + 1), "F f" + i + " " + versions.get(i));
+    }
+  }
+
+  public void empty_snapshot() throws Exception {
+    final File file = new File(myTempDir, "1000");
+    new CompactSnapshotWriter().writeTo(file);
+
+    assertEquals(SnapshotRecorder.readCompact(file).size(), 0);
+    assertEquals(CompactSnapshotReader.readElementCount(file), 0);
+  }
+
+  public void truncated_snapshot_is_rejected() throws Exception {
+    final byte[] content = FileUtil.loadFileBytes(writeSample());
+    for (int length = 0; length < content.length; length++) {
+      final File truncated = new File(myTempDir, "truncated");
+      write(truncated, content, length);
+      assertBroken(truncated);
+    }
+  }
+
+  public void damaged_trailer_is_rejected() throws Exception {
+    final byte[] content = FileUtil.loadFileBytes(writeSample());
+    for (int pos = content.length - 4; pos < content.length; pos++) {
+      final byte[] damaged = content.clone();
+      damaged[pos] ^= 0x01;
+      final File file = new File(myTempDir, "damaged");
+      write(file, damaged, damaged.length);
+      assertBroken(file);
+      try {
+        CompactSnapshotReader.readElementCount(file);
+        fail("Damaged trailer is not detected by the element count");
+      }
+      catch (final BrokenSnapshotException e) {
+        // expected
+      }
+    }
+  }
+
+  public void extra_bytes_are_rejected() throws Exception {
+    final byte[] content = FileUtil.loadFileBytes(writeSample());
+    final byte[] extended = Arrays.copyOf(content, content.length + 1);
+    final File file = new File(myTempDir, "extended");
+    write(file, extended, extended.length);
+    assertBroken(file);
+  }
+
+  private File writeSample() throws IOException {
+    final CompactSnapshotWriter writer = new CompactSnapshotWriter();
+    writer.writeDirOpen("/main/3", "");
+    writer.writeDirOpen("/main/12", "dir");
+    writer.writeFile("/main/12345678901", "big", true, false);
+    writer.writeFile("/main/0", "new", false, true);
+    writer.writeDirClose();
+    writer.writeDirClose();
+    final File file = new File(myTempDir, "1000");
+    writer.writeTo(file);
+    return file;
+  }
+
+  private static void write(final File file, final byte[] content, final int length) throws IOException {
+    final FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content, 0, length);
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  private static void assertBroken(final File file) throws Exception {
+    try {
+      SnapshotRecorder.readCompact(file);
+      fail("Broken snapshot of " + file.length() + " bytes is read");
+    }
+    catch (final BrokenSnapshotException e) {
+      // expected
+    }
+  }
+}
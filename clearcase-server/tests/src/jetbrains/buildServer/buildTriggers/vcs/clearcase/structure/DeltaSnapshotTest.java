@@ -0,0 +1,244 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+@Test
+public class DeltaSnapshotTest {
+  private File myTempDir;
+
+  @BeforeMethod
+  protected void setUp() throws Exception {
+    myTempDir = FileUtil.createTempDirectory("deltaSnapshot", "");
+  }
+
+  @AfterMethod
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myTempDir);
+  }
+
+  public void version_change_delete_and_add() throws Exception {
+    writeBase();
+    final DeltaSnapshot delta = new DeltaSnapshot(1000, 1);
+    delta.versionChanged("a.txt", "/main/12345678901");
+    delta.deleted(path("src", "old"));
+    final SnapshotSink added = delta.added("src");
+    added.writeFile("/main/0", "new.txt", true, false);
+    added.writeDirOpen("/main/0", "sub");
+    added.writeFile("/main/0", "inner.txt", true, false);
+    added.writeDirClose();
+    delta.writeTo(new File(myTempDir, "2000"));
+
+    assertEquals(SnapshotRecorder.readAny(new File(myTempDir, "2000")), Arrays.asList(
+      "D  /main/3",
+      "F a.txt /main/12345678901 t",
+      "D src /main/5",
+      "F new.txt /main/0 t",
+      "D sub /main/0",
+      "F inner.txt /main/0 t",
+      "C",
+      "F run.sh /main/7 t x",
+      "C",
+      "C"));
+  }
+
+  public void entry_deleted_and_added_under_the_same_name() throws Exception {
+    writeBase();
+    final DeltaSnapshot delta = new DeltaSnapshot(1000, 1);
+    delta.deleted(path("src", "old"));
+    final SnapshotSink added = delta.added("src");
+    added.writeFile("/main/0", "old", false, false);
+    delta.writeTo(new File(myTempDir, "2000"));
+
+    assertEquals(SnapshotRecorder.readAny(new File(myTempDir, "2000")), Arrays.asList(
+      "D  /main/3",
+      "F a.txt /main/1 t",
+      "D src /main/5",
+      "F old /main/0",
+      "F run.sh /main/7 t x",
+      "C",
+      "C"));
+  }
+
+  public void chain_is_applied_in_order() throws Exception {
+    writeBase();
+
+    final DeltaSnapshot first = new DeltaSnapshot(1000, 1);
+    first.versionChanged("a.txt", "/main/2");
+    first.added("src").writeFile("/main/1", "b.txt", true, false);
+    first.writeTo(new File(myTempDir, "2000"));
+
+    // changes the entry added by the first delta and the version set by it
+    final DeltaSnapshot second = new DeltaSnapshot(2000, 2);
+    second.versionChanged("a.txt", "/main/3");
+    second.versionChanged(path("src", "b.txt"), "/main/2");
+    second.deleted(path("src", "run.sh"));
+    second.writeTo(new File(myTempDir, "3000"));
+
+    final DeltaSnapshot third = new DeltaSnapshot(3000, 3);
+    third.deleted(path("src", "b.txt"));
+    third.added("src").writeFile("/main/0", "b.txt", false, false);
+    third.versionChanged("src", "/main/6");
+    third.writeTo(new File(myTempDir, "4000"));
+
+    assertEquals(SnapshotRecorder.readAny(new File(myTempDir, "3000")), Arrays.asList(
+      "D  /main/3",
+      "F a.txt /main/3 t",
+      "D src /main/5",
+      "F b.txt /main/2 t",
+      "D old /main/4",
+      "F deep.txt /main/1",
+      "C",
+      "C",
+      "C"));
+    assertEquals(SnapshotRecorder.readAny(new File(myTempDir, "4000")), Arrays.asList(
+      "D  /main/3",
+      "F a.txt /main/3 t",
+      "D src /main/6",
+      "F b.txt /main/0",
+      "D old /main/4",
+      "F deep.txt /main/1",
+      "C",
+      "C",
+      "C"));
+    assertEquals(DeltaSnapshot.readChainLength(new File(myTempDir, "4000")), 3);
+    assertEquals(DeltaSnapshot.readBaseTime(new File(myTempDir, "4000")), Long.valueOf(3000));
+  }
+
+  public void element_count_is_stored() throws Exception {
+    writeBase();
+    final DeltaSnapshot delta = new DeltaSnapshot(1000, 1);
+    delta.added("").writeFile("/main/1", "b.txt", true, false);
+    final SnapshotSink result = delta.getResultSink();
+    for (int i = 0; i < 8; i++) {
+      result.writeFile("/main/1", "f" + i, false, false);
+    }
+    delta.writeTo(new File(myTempDir, "2000"));
+
+    assertEquals(CacheProcessor.readElementCount(new File(myTempDir, "2000")), 8);
+  }
+
+  public void missing_base_is_rejected() throws Exception {
+    final DeltaSnapshot delta = new DeltaSnapshot(1000, 1);
+    delta.deleted("a.txt");
+    delta.writeTo(new File(myTempDir, "2000"));
+
+    assertBroken(new File(myTempDir, "2000"));
+  }
+
+  public void truncated_delta_is_rejected() throws Exception {
+    final byte[] content = FileUtil.loadFileBytes(writeSampleDelta());
+    for (int length = 0; length < content.length; length++) {
+      final File truncated = new File(myTempDir, "truncated");
+      write(truncated, content, length);
+      try {
+        DeltaSnapshot.read(truncated);
+        fail("Truncated delta of " + length + " bytes is read");
+      }
+      catch (final BrokenSnapshotException e) {
+        // expected
+      }
+    }
+  }
+
+  public void damaged_trailer_is_rejected() throws Exception {
+    final byte[] content = FileUtil.loadFileBytes(writeSampleDelta());
+    for (int pos = content.length - 4; pos < content.length; pos++) {
+      final byte[] damaged = content.clone();
+      damaged[pos] ^= 0x01;
+      final File file = new File(myTempDir, "damaged");
+      write(file, damaged, damaged.length);
+      try {
+        DeltaSnapshot.read(file);
+        fail("Damaged trailer is not detected");
+      }
+      catch (final BrokenSnapshotException e) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Writes the full snapshot with the time 1000:
+   * a.txt, src/old/deep.txt, src/run.sh
+   */
+  private void writeBase() throws IOException {
+    final CompactSnapshotWriter writer = new CompactSnapshotWriter();
+    writer.writeDirOpen("/main/3", "");
+    writer.writeFile("/main/1", "a.txt", true, false);
+    writer.writeDirOpen("/main/5", "src");
+    writer.writeDirOpen("/main/4", "old");
+    writer.writeFile("/main/1", "deep.txt", false, false);
+    writer.writeDirClose();
+    writer.writeFile("/main/7", "run.sh", true, true);
+    writer.writeDirClose();
+    writer.writeDirClose();
+    writer.writeTo(new File(myTempDir, "1000"));
+  }
+
+  private File writeSampleDelta() throws IOException {
+    final DeltaSnapshot delta = new DeltaSnapshot(1000, 1);
+    delta.versionChanged("a.txt", "/main/12345678901");
+    delta.deleted(path("src", "old"));
+    delta.added("src").writeFile("/main/0", "old", true, false);
+    final File file = new File(myTempDir, "2000");
+    delta.writeTo(file);
+    return file;
+  }
+
+  private static String path(final String... names) {
+    final StringBuilder result = new StringBuilder();
+    for (final String name : names) {
+      if (result.length() > 0) {
+        result.append(File.separatorChar);
+      }
+      result.append(name);
+    }
+    return result.toString();
+  }
+
+  private static void write(final File file, final byte[] content, final int length) throws IOException {
+    final FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(content, 0, length);
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  private static void assertBroken(final File file) throws Exception {
+    try {
+      SnapshotRecorder.readAny(file);
+      fail("Broken snapshot " + file + " is read");
+    }
+    catch (final BrokenSnapshotException e) {
+      // expected
+    }
+  }
+}
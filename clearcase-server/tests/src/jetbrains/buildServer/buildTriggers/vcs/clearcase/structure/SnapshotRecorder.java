@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2022 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.clearcase.structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Records the visited snapshot entries as lines: "F name version [t] [x]" for a file, "D name version" for a directory open
+ * and "C" for a directory close
+ */
+class SnapshotRecorder implements CompactSnapshotReader.Visitor {
+  @NotNull private final List<String> myEntries = new ArrayList<String>();
+
+  public void file(@NotNull final String name, @NotNull final String version, final boolean text, final boolean executable) {
+    myEntries.add("F " + name + " " + version + (text ? " t" : "") + (executable ? " x" : ""));
+  }
+
+  public void dirOpen(@NotNull final String name, @NotNull final String version) {
+    myEntries.add("D " + name + " " + version);
+  }
+
+  public void dirClose() {
+    myEntries.add("C");
+  }
+
+  @NotNull
+  List<String> getEntries() {
+    return myEntries;
+  }
+
+  /**
+   * @return the entries of the full snapshot file
+   */
+  @NotNull
+  static List<String> readCompact(@NotNull final File file) throws IOException, VcsException {
+    final SnapshotRecorder recorder = new SnapshotRecorder();
+    new CompactSnapshotReader(file).processAll(recorder);
+    return recorder.getEntries();
+  }
+
+  /**
+   * @return the entries of the snapshot file of any format, a delta snapshot is read with its base
+   */
+  @NotNull
+  static List<String> readAny(@NotNull final File file) throws IOException, VcsException {
+    final File full = new File(file.getParentFile(), file.getName() + ".full");
+    CacheProcessor.readFull(file).writeTo(full);
+    return readCompact(full);
+  }
+}